@@ -33,6 +33,8 @@ class ATTiny10Assembler implements Serializable {
   private int                         dataAdd = 0x40;
   private boolean                     cSeg;
   private Map<String,Object>          symbols = new TreeMap<>();
+  private final EquateGraph           equates;
+  private Map<String,EquateLine>      equateLines = new LinkedHashMap<>();
   private List<Inst>                  pass2 = new ArrayList<>();
   private byte                        fuseBits = (byte) 0xFF;
 
@@ -306,7 +308,123 @@ class ATTiny10Assembler implements Serializable {
     }
   }
 
+  private class Type2 implements Inst, Serializable {
+    private static final long serialVersionUID = 1L;
+    private String[]  parts;
+    private String    comment, line;
+    private int       add;
+
+    Type2 (String[] parts, int add, String comment, String line) {
+      this.parts = parts;
+      this.add = add;
+      this.comment = comment;
+      this.line = line;
+    }
+
+    public void emit () {
+      try {
+        String op = parts[0].toLowerCase();
+        int val = regValue(parts[1]);
+        if (oneReg1.containsKey(op)) {
+          int inst = oneReg1.get(op);
+          if ("rol".equals(op)  ||  "lsl".equals(op)  ||  "clr".equals(op)  ||  "tst".equals(op)) {
+            // ---- --sd dddd ssss
+            emitCode(comment, add, parts, inst + (val << 4) + (val & 0x0F) + ((val & 0x10) << 5));
+          } else {
+            // ---- ---r rrrr ----
+            emitCode(comment, add, parts, inst + (val << 4));
+          }
+        } else if (oneReg2.containsKey(op)) {
+          int inst = oneReg2.get(op);
+          // ---- ---- rrrr ----
+          emitCode(comment, add, parts, inst + ((val - 16) << 4));
+        } else {
+          int inst = "bset".equals(op) ? 0x9408 : 0x9488;
+          // ---- ---- -bbb ----
+          emitCode(comment, add, parts, inst + (val << 4));
+        }
+      } catch (Exception ex) {
+        addCommentOrError(add, "* * * Err: " + line + " - " + ex.getMessage());
+        maxAdd = Math.max(maxAdd, (add + 1) << 1);
+      }
+    }
+  }
+
+  private class Data implements Inst, Serializable {
+    private static final long serialVersionUID = 1L;
+    private String[]  parts;
+    private String    comment, line;
+    private int       add;
+
+    Data (String[] parts, int add, String comment, String line) {
+      this.parts = parts;
+      this.add = add;
+      this.comment = comment;
+      this.line = line;
+    }
+
+    /**
+     * @return number of words of code space used (.db packs two bytes per word)
+     */
+    int size () {
+      return ".db".equals(parts[0]) ? parts.length / 2 : parts.length - 1;
+    }
+
+    public void emit () {
+      try {
+        int[] vals = new int[parts.length - 1];
+        for (int ii = 1; ii < parts.length; ii++) {
+          vals[ii - 1] = regValue(parts[ii]);
+        }
+        int wordAdd = add;
+        boolean first = true;
+        if (".db".equals(parts[0])) {
+          for (int ii = 0; ii < vals.length; ii += 2) {
+            int word = (vals[ii] & 0xFF) | (ii + 1 < vals.length ? (vals[ii + 1] & 0xFF) << 8 : 0);
+            emitCode(comment, wordAdd++, first ? parts : new String[0], word);
+            first = false;
+          }
+        } else {
+          for (int val : vals) {
+            emitCode(comment, wordAdd++, first ? parts : new String[0], val & 0xFFFF);
+            first = false;
+          }
+        }
+      } catch (Exception ex) {
+        addCommentOrError(add, "* * * Err: " + line + " - " + ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Where an equate was defined, so an error evaluating it can be shown with the source line
+   */
+  private static class EquateLine implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String  line;
+    private final int     add, index;   // Code address and position in that address's comment lines
+
+    EquateLine (String line, int add, int index) {
+      this.line = line;
+      this.add = add;
+      this.index = index;
+    }
+  }
+
+  ATTiny10Assembler () {
+    this(new EquateGraph());
+  }
+
+  /**
+   * @param equates EquateGraph from the last assembly of the same source, so only equates which have changed,
+   *                or use symbols which have changed are evaluated again
+   */
+  ATTiny10Assembler (EquateGraph equates) {
+    this.equates = equates;
+  }
+
   void assemble (String code) {
+    equates.beginPass();
     StringTokenizer tok = new StringTokenizer(code, "\n\r");
     while (tok.hasMoreTokens()) {
       String line = tok.nextToken().trim();
@@ -331,6 +449,7 @@ class ATTiny10Assembler implements Serializable {
           String key = label.toLowerCase();
           int val = cSeg ? codeAdd : dataAdd;
           symbols.put(key, val);
+          equates.symbolChanged(key, val);
           if (cSeg)
             addCommentOrError(codeAdd, label + ":");
         }
@@ -341,42 +460,14 @@ class ATTiny10Assembler implements Serializable {
             tmp |= (byte) fuses.get(parts[ii]).intValue();
           }
           fuseBits = (byte) ~tmp;
-        } else if (parts.length > 0 && ".db".equals(parts[0])) {
-          if (cSeg) {
-            int byteAdd = 0;
-            int word = 0;
-            boolean first = true;
-            for (int ii = 1; ii < parts.length; ii++) {
-              String tmp = parts[ii];
-              int val = regValue(tmp);
-              if (++byteAdd == 2) {
-                emitCode(comment, codeAdd++, first ? parts : new String[0], word | ((val & 0xFF) << 8));
-                first = false;
-                word = 0;
-                byteAdd = 0;
-              } else {
-                word = val & 0xFF;
-              }
-            }
-            if (byteAdd > 0) {
-              emitCode(comment, codeAdd++, first ? parts : new String[0], word);
-            }
-            maxAdd = Math.max(maxAdd, codeAdd << 1);
-          } else {
-            addCommentOrError(codeAdd, ".db directive doesn't work in DSEG");
-          }
-        } else if (parts.length > 0 && ".dw".equals(parts[0])) {
+        } else if (parts.length > 0 && (".db".equals(parts[0]) || ".dw".equals(parts[0]))) {
           if (cSeg) {
-            boolean first = true;
-            for (int ii = 1; ii < parts.length; ii++) {
-              String tmp = parts[ii];
-              int val = regValue(tmp);
-              emitCode(comment, codeAdd++, first ? parts : new String[0], val & 0xFFFF);
-              first = false;
-            }
+            Data data = new Data(parts, codeAdd, comment, line);
+            codeAdd += data.size();
             maxAdd = Math.max(maxAdd, codeAdd << 1);
+            emitOrDefer(data, Arrays.copyOfRange(parts, 1, parts.length));
           } else {
-            addCommentOrError(codeAdd, ".dw directive doesn't work in DSEG");
+            addCommentOrError(codeAdd, parts[0] + " directive doesn't work in DSEG");
           }
         } else if (parts.length == 0  && comment != null) {
           addCommentOrError(codeAdd, comment);
@@ -417,7 +508,9 @@ class ATTiny10Assembler implements Serializable {
                 String key = (String) ee.nextElement();
                 String val = deviceSymbols.getProperty(key);
                 try {
-                  symbols.put(key.toLowerCase(), toNum(val));
+                  int num = toNum(val);
+                  symbols.put(key.toLowerCase(), num);
+                  equates.symbolChanged(key.toLowerCase(), num);
                 } catch (NumberFormatException ex) {
                   addCommentOrError(codeAdd, "Bad device symbol: " + key + ": " + val);
                 }
@@ -426,33 +519,17 @@ class ATTiny10Assembler implements Serializable {
               addCommentOrError(codeAdd, "unknown device type: " + arg);
             }
           } else if (".equ".equals(op) || ".eq".equals(op) || ".def".equals(op)) {
-            // Process equate
+            // Process equate (evaluated when first needed, so it may reference symbols defined later)
             String[] tmp = parts[1].toLowerCase().split("=");
             if (tmp.length == 2) {
               String name = tmp[0].trim();
-              int value = regValue(tmp[1].trim());
-              symbols.put(name, value);
+              equates.define(name, tmp[1].trim());
+              List<String> cList = commentLines.get(codeAdd);
+              equateLines.remove(name);
+              equateLines.put(name, new EquateLine(line, codeAdd, cList != null ? cList.size() : 0));
             }
-          } else if (oneReg1.containsKey(op)) {
-            int reg = regValue(arg);
-            int inst = oneReg1.get(op);
-            if ("rol".equals(op)  ||  "lsl".equals(op)  ||  "clr".equals(op)  ||  "tst".equals(op)) {
-              // ---- --sd dddd ssss
-              emitCode(comment, codeAdd++, parts, inst + (reg << 4) + (reg & 0x0F) + ((reg & 0x10) << 5));
-            } else {
-              // ---- ---r rrrr ----
-              emitCode(comment, codeAdd++, parts, inst + (reg << 4));
-            }
-          } else if (oneReg2.containsKey(op)) {
-            int reg = regValue(arg);
-            int inst = oneReg2.get(op);
-            // ---- ---- rrrr ----
-            emitCode(comment, codeAdd++, parts, inst + ((reg - 16) << 4));
-          } else if ("bset".equals(op)  ||  "bclr".equals(op)) {
-            int bit = regValue(arg);
-            int inst = "bset".equals(op) ? 0x9408 : 0x9488;
-            // ---- ---- -bbb ----
-            emitCode(comment, codeAdd++, parts, inst + (bit << 4));
+          } else if (oneReg1.containsKey(op) || oneReg2.containsKey(op) || "bset".equals(op) || "bclr".equals(op)) {
+            emitOrDefer(new Type2(parts, codeAdd++, comment, line), arg);
           } else if (branch.containsKey(op)) {
             pass2.add(new Branch(parts, codeAdd++, comment));
           } else {
@@ -468,7 +545,21 @@ class ATTiny10Assembler implements Serializable {
         maxAdd = codeAdd << 1;
       }
     }
-    // Emit all relative branches
+    // Report any equates that could not be evaluated where they were defined (in reverse order, so the position
+    // saved for each one is not moved by inserting the errors which follow it)
+    Map<String,Exception> errors = equates.evaluateAll(this::symbolValue);
+    List<String> names = new ArrayList<>(equateLines.keySet());
+    Collections.reverse(names);
+    for (String name : names) {
+      Exception ex = errors.get(name);
+      if (ex != null) {
+        EquateLine def = equateLines.get(name);
+        String msg = ex.getCause() != null ? ex.getMessage() + " - " + ex.getCause().getMessage() : ex.getMessage();
+        commentLines.computeIfAbsent(def.add, k -> new ArrayList<>()).add(def.index, "* * * Err: " + def.line + " - " + msg);
+        maxAdd = Math.max(maxAdd, (def.add + 1) << 1);
+      }
+    }
+    // Emit all relative branches and the instructions which use symbols defined later in the source
     for (Inst inst : pass2) {
       inst.emit();
     }
@@ -517,7 +608,57 @@ class ATTiny10Assembler implements Serializable {
   }
 
   private int toNum (String val) {
-    return ((BigInteger) ExpressionParser.eval(ExpressionParser.parse(val, null), symbols)).intValue();
+    ExpressionParser.Token[] expr = ExpressionParser.parse(val, null);
+    Object ret = ExpressionParser.eval(expr, equates.bind(expr, this::symbolValue));
+    if (!(ret instanceof BigInteger)) {
+      throw new IllegalStateException("Value '" + val + "' not a number");
+    }
+    return ((BigInteger) ret).intValue();
+  }
+
+  /**
+   * Emit an instruction now, if every symbol its operands use is defined, else defer it until all the equates
+   * are evaluated at the end of the assembly, so it can use equates and labels defined later in the source
+   * @param inst instruction
+   * @param operands operands of the instruction
+   */
+  private void emitOrDefer (Inst inst, String... operands) {
+    for (String operand : operands) {
+      if (!isDefined(operand)) {
+        pass2.add(inst);
+        return;
+      }
+    }
+    inst.emit();
+  }
+
+  /**
+   * Check if the symbols used by an operand are defined (.org and .byte need their operand's value when it's read,
+   * but other directives and instructions can be deferred until the end of the assembly)
+   */
+  private boolean isDefined (String operand) {
+    String reg = operand.toLowerCase();
+    if (stInst.containsKey(reg)  ||  ldInst.containsKey(reg)) {
+      return true;
+    }
+    try {
+      for (String var : ExpressionParser.getVariables(ExpressionParser.parse(reg, null))) {
+        if (!equates.isDefined(var, this::symbolValue)) {
+          return false;
+        }
+      }
+    } catch (Exception ex) {
+      // Not an expression, so the error is reported when the instruction is emitted
+    }
+    return true;
+  }
+
+  /**
+   * Resolves symbols referenced by equates which are not themselves equates
+   */
+  private Object symbolValue (String name) {
+    Object val = symbols.get(name);
+    return val != null ? val : regPair.get(name);
   }
 
   String getListing () {
@@ -564,6 +705,9 @@ class ATTiny10Assembler implements Serializable {
 
   private int regValue (String reg) {
     reg = reg.toLowerCase();
+    if (equates.contains(reg)) {
+      return equates.value(reg, this::symbolValue);
+    }
     if (symbols.containsKey(reg)) {
       Object val = symbols.get(reg);
       if (val instanceof Number) {
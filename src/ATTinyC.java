@@ -1,7 +1,9 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Point2D;
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URL;
 import java.nio.channels.Channels;
@@ -9,24 +11,24 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 
 import javax.swing.*;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
 
 import jssc.SerialNativeInterface;
 
@@ -43,9 +45,11 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
   private static final String       VERSION_URL = "https://raw.githubusercontent.com/wholder/ATTiny10IDE/master/resources/version.props";
   private static final String       DOWNLOAD = "https://github.com/wholder/ATTiny10IDE/blob/master/out/artifacts/ATTiny10IDE_jar/ATTiny10IDE.jar";
   private static final String       fileSep =  System.getProperty("file.separator");
+  private static final long         AVRDUDE_TIMEOUT = 2 * 60 * 1000;
   private static String             tempBase = System.getProperty("java.io.tmpdir");
   private static final Font         tFont = getCodeFont(12);
-  private static final int          cmdMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+  private static final int          cmdMask = GraphicsEnvironment.isHeadless() ? InputEvent.CTRL_DOWN_MASK :
+                                              Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
   private static final KeyStroke    OPEN_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_O, cmdMask) ;
   private static final KeyStroke    SAVE_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_S, cmdMask) ;
   private static final KeyStroke    QUIT_KEY = KeyStroke.getKeyStroke(KeyEvent.VK_Q, cmdMask) ;
@@ -69,6 +73,20 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
   private final RadioMenu           targetMenu;
   private final String              tmpDir;
   private final String              tmpExe;
+  private final String              cacheDir;
+  private final String              specDir;
+  private final String              warmDir;
+  private final javax.swing.Timer   specTimer;
+  private final javax.swing.Timer   warmTimer;
+  private final ExecutorService     specWorker;
+  private final ExecutorService     buildWorker;
+  private final AtomicInteger       specGeneration = new AtomicInteger();
+  private volatile BuildMonitor     specMonitor, currentBuild, warmMonitor;
+  private Map<String,String>        specResult;
+  private String                    specSource, specFile, specKey;
+  private String                    warmKey, warmChip;
+  private final EquateGraph         asmEquates = new EquateGraph();   // Kept so edits only re-evaluate changed equates
+  private List<String>              warmPragmas;
   private String                    avrChip;
   private String                    editFile;
   private String                    exportParms;
@@ -76,8 +94,11 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
   private File                      cFile;
   private final Preferences         prefs = Preferences.userRoot().node(this.getClass().getName());
   private Map<String, String>       compileMap;
+  private String                    listHeader;
+  private volatile boolean          listPending;
   private Properties                versionInfo;
   private static final Map<String,String> sigLookup = new HashMap<>();
+  private static Method             viewToModel;
 
   {
     try {
@@ -260,6 +281,7 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         "java.io.tmpdir: " + tempBase + "\n" +
         "tmpDir: " + tmpDir + "\n" +
         "tmpExe: " + tmpExe + "\n" +
+        "cacheDir: " + cacheDir + "\n" +
         "Java Version: " + System.getProperty("java.version") + "\n" +
         "Java Simple Serial Connector: " + SerialNativeInterface.getLibraryVersion() + "\n" +
         "JSSC Native Code DLL Version: " + SerialNativeInterface.getNativeLibraryVersion() + "\n",
@@ -272,6 +294,10 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
                                       prefs.getBoolean("gen_prototypes", true)));
     items.add(new ParmDialog.ParmItem("Interleave Source and ASM{*[INTERLEAVE]*}",
                                       prefs.getBoolean("interleave", true)));
+    items.add(new ParmDialog.ParmItem("Build in Background While Editing{*[BG_BUILD]*}",
+                                      prefs.getBoolean("background_build", false)));
+    items.add(new ParmDialog.ParmItem("Fast Build Profile (no LTO){*[FAST_BUILD]*}",
+                                      "fast".equals(prefs.get("build_profile", "release"))));
     boolean devFeatures = (modifiers & InputEvent.CTRL_MASK) != 0;
     if (devFeatures) {
       items.add(new ParmDialog.ParmItem("Enable Preprocessing (Developer){*[PREPROCESS]*}",
@@ -286,9 +312,11 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     if (dialog.wasPressed()) {
       prefs.putBoolean("gen_prototypes",          parmSet[0].value);
       prefs.putBoolean("interleave",              parmSet[1].value);
+      prefs.putBoolean("background_build",        parmSet[2].value);
+      prefs.put("build_profile",                  parmSet[3].value ? "fast" : "release");
       if (devFeatures) {
-        prefs.putBoolean("enable_preprocessing",  parmSet[2].value);
-        prefs.putBoolean("developer_features",    parmSet[3].value);
+        prefs.putBoolean("enable_preprocessing",  parmSet[4].value);
+        prefs.putBoolean("developer_features",    parmSet[5].value);
       }
     }
   }
@@ -307,6 +335,36 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
       base.mkdirs();
     }
     tmpExe = base.getAbsolutePath() + fileSep;
+    // Setup directory for cached object files
+    cacheDir = tempBase + "avr-object-cache" + fileSep;
+    // Setup temp directory and low priority worker for background builds
+    base = (new File(tempBase + "avr-spec-code"));
+    if (!base.exists()) {
+      base.mkdirs();
+    }
+    specDir = base.getAbsolutePath() + fileSep;
+    specWorker = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Background Build");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    // Builds run one at a time on this worker, so a superseded build is finished before the next starts
+    buildWorker = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Build");
+      thread.setDaemon(true);
+      return thread;
+    });
+    specTimer = new javax.swing.Timer(1000, ev -> startBackgroundBuild());
+    specTimer.setRepeats(false);
+    // Setup temp directory for warming up the core when the chip, clock, or #defines change
+    base = (new File(tempBase + "avr-warm-code"));
+    if (!base.exists()) {
+      base.mkdirs();
+    }
+    warmDir = base.getAbsolutePath() + fileSep;
+    warmTimer = new javax.swing.Timer(1500, ev -> startCoreWarmUp());
+    warmTimer.setRepeats(false);
     // Load version info
     try {
       versionInfo = Utility.getResourceMap("version.props");
@@ -324,10 +382,12 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     codePane = new CodeEditPane(prefs);
     codePane.setCodeChangeListener(() -> {
       setDirtyIndicator(codeDirty = true);
-      updateChip(codePane.getText());
+      updateChip(codePane.getSourceIndex());
+      scheduleCoreWarmUp(codePane.getSourceIndex());
       compiled = false;
       listPane.setForeground(Color.red);
       hexPane.setForeground(Color.red);
+      scheduleBackgroundBuild();
     });
     MarkupView howToPane = new MarkupView("documentation/index.md");
     tabPane.addTab("How To", null, howToPane, "This is the documentation page");
@@ -344,6 +404,14 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         //System.out.println(ev.getDescription());
       }
     });
+    listPane.addMouseListener(new MouseAdapter() {
+      @Override
+      public void mouseClicked (MouseEvent ev) {
+        if (ev.getClickCount() == 2) {
+          showSourceLine(getTextOffset(listPane, ev.getPoint()));
+        }
+      }
+    });
     hexPane =  new MyTextPane(tabPane, "Hex Output", "Intel Hex Output file for programmer");
     progPane = new MyTextPane(tabPane, "Programmer", "Records communication with Arduino-based programmer");
     infoPane = new MyTextPane(tabPane, "Error Info", "Displays additional information about IDE and error messages");
@@ -508,6 +576,9 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
       saveMenu.setEnabled(idx == Tab.SRC.num);
       saveAsMenu.setEnabled(idx == Tab.SRC.num || idx == Tab.HEX.num || idx == Tab.LIST.num);
       newMenu.setEnabled(idx == Tab.SRC.num);
+      if (idx == Tab.LIST.num) {
+        showListing();
+      }
     });
     // Add "Actions" Menu
     JMenu actions = new JMenu("Actions");
@@ -518,8 +589,9 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
       if (cFile != null) {
         String fName = cFile.getName().toLowerCase();
         if (fName.endsWith(".asm")) {
-          ATTiny10Assembler asm = new ATTiny10Assembler();
+          ATTiny10Assembler asm = new ATTiny10Assembler(asmEquates);
           asm.assemble(codePane.getText());
+          listPending = false;
           listPane.setForeground(Color.black);
           listPane.setText(asm.getListing());
           hexPane.setForeground(Color.black);
@@ -528,59 +600,23 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         } else {
           // Reinstall toolchain if there was an error last time we tried to build
           verifyToolchain();
-          Thread cThread = new Thread(() -> {
+          String src = codePane.getText();
+          SourceIndex source = codePane.getSourceIndex().copy();
+          if (specResult != null && src.equals(specSource) && fName.equals(specFile) && getBuildKey().equals(specKey)) {
+            // Background build already compiled this source, so show its results
+            showBuildResult(specResult, specDir);
+            selectTab(Tab.LIST);
+            return;
+          }
+          Map<String,String> tags = getBuildTags(fName, tmpDir);
+          BuildMonitor monitor = supersedeBuild();
+          buildWorker.submit(() -> {
             try {
               listPane.setForeground(Color.black);
               listPane.setText("");
-              Map<String,String> tags = new HashMap<>();
-              tags.put("TDIR", tmpDir);
-              tags.put("TEXE", tmpExe);
-              tags.put("IDIR", tmpExe + "avr" + fileSep + "include" + fileSep);
-              tags.put("FNAME", fName);
-              if (prefs.getBoolean("gen_prototypes", false)) {
-                tags.put("PREPROCESS", "GENPROTOS");
-              }
-              compileMap = ATTinyCompiler.compile(codePane.getText(), tags, prefs, this);
-              String compName = "Sketch.cpp";
-              String trueName = cFile.getName();
-              if (compileMap.containsKey("ERR")) {
-                listPane.setForeground(Color.red);
-                // Remove path to tmpDir from error messages
-                String errText = compileMap.get("ERR").replace(tmpDir + compName, trueName);
-                errText = errText.replace("\n", "<br>");
-                Pattern lineRef = Pattern.compile("(" + trueName + ":([0-9]+?:[0-9]+?):) (fatal error|error|note):");
-                Matcher mat = lineRef.matcher(errText);
-                StringBuffer buf = new StringBuffer("<html><body><tt>");
-                while (mat.find()) {
-                  String seq = mat.group(1);
-                  if (seq != null) {
-                    mat.appendReplacement(buf, "<a href=\"" + mat.group(2) +  "\">" + seq + "</a>");
-                  }
-                }
-                mat.appendTail(buf);
-                buf.append("</tt></body></html>");
-                listPane.setErrorText(buf.toString());
-                compiled = false;
-              } else {
-                listPane.setForeground(Color.black);
-                StringBuilder tmp = new StringBuilder();
-                tmp.append(compileMap.get("INFO"));
-                tmp.append("\n\n");
-                if (compileMap.containsKey("WARN")) {
-                  tmp.append(compileMap.get("WARN"));
-                  tmp.append("\n\n");
-                }
-                exportParms = compileMap.get("XPARMS");
-                tmp.append( compileMap.get("SIZE"));
-                tmp.append(compileMap.get("LST"));
-                String listing = tmp.toString();
-                compName = compName.substring(0, compName.indexOf("."));
-                trueName = trueName.substring(0, trueName.indexOf("."));
-                listPane.setText(listing.replace(tmpDir + compName, trueName));
-                hexPane.setForeground(Color.black);
-                hexPane.setText(compileMap.get("HEX"));
-                avrChip = compileMap.get("CHIP");
-                compiled = true;
+              Map<String,String> result = ATTinyCompiler.compile(source, tags, prefs, this, monitor);
+              if (monitor == currentBuild) {
+                showBuildResult(result, tmpDir);
               }
             } catch (Exception ex) {
               prefs.putBoolean("reload_toolchain", true);
@@ -594,7 +630,6 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
               infoPane.append(bOut.toString() + "\n");
             }
           });
-          cThread.start();
         }
         selectTab(Tab.LIST);
       } else {
@@ -611,7 +646,8 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         if (fName.endsWith(".cpp") || fName.endsWith(".c")) {
           // Reinstall toolchain if there was an error last time we tried to build
           verifyToolchain();
-          Thread cThread = new Thread(() -> {
+          BuildMonitor monitor = supersedeBuild();
+          buildWorker.submit(() -> {
             try {
               listPane.setForeground(Color.black);
               listPane.setText("");
@@ -621,7 +657,11 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
               tags.put("IDIR", tmpExe + "avr" + fileSep + "include" + fileSep);
               tags.put("FNAME", fName);
               tags.put("PREPROCESS", "PREONLY");
-              compileMap = ATTinyCompiler.compile(codePane.getText(), tags, prefs, this);
+              Map<String,String> result = ATTinyCompiler.compile(codePane.getText(), tags, prefs, this, monitor);
+              if (monitor != currentBuild) {
+                return;
+              }
+              compileMap = result;
               if (compileMap.containsKey("ERR")) {
                 listPane.setForeground(Color.red);
                 listPane.setText(compileMap.get("ERR"));
@@ -640,7 +680,6 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
               infoPane.append(bOut.toString() + "\n");
             }
           });
-          cThread.start();
         } else {
           listPane.setText("Must be .c or .cpp file");
         }
@@ -649,6 +688,25 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         showErrorDialog("Please save file first!");
       }
     });
+    actions.add(mItem = new JMenuItem("Cancel Build"));
+    mItem.setToolTipText("Stop the Build in Progress and any Compiler Processes it has Running");
+    mItem.addActionListener(e -> cancelBuild());
+    actions.add(mItem = new JMenuItem("Export Build Trace..."));
+    mItem.setToolTipText("Save Timing of Last Build's Steps as Chrome Trace JSON (for chrome://tracing, or Perfetto)");
+    mItem.addActionListener(e -> {
+      if (compileMap != null && compileMap.containsKey("TRACEJSON")) {
+        JFileChooser jFileChooser = new JFileChooser();
+        jFileChooser.setSelectedFile(new File("build-trace.json"));
+        if (jFileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+          File sFile = jFileChooser.getSelectedFile();
+          if (!sFile.exists() || doWarningDialog("Overwrite Existing file?")) {
+            Utility.saveFile(sFile, compileMap.get("TRACEJSON"));
+          }
+        }
+      } else {
+        showErrorDialog("Please build first!");
+      }
+    });
     actions.addSeparator();
     /*
      *    Program Chip Menu
@@ -1140,6 +1198,9 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         avrChip = type;
         targetMenu.setText("Target->" + avrChip);
         prefs.put("programmer.target", avrChip);
+        // Builds use the target chip, so a background build for the old target can't be reused
+        scheduleBackgroundBuild();
+        scheduleCoreWarmUp(codePane.getSourceIndex());
       });
     }
     targetMenu.setText("Target->" + avrChip);
@@ -1199,26 +1260,16 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     return false;
   }
 
-  private void updateChip (String src) {
-    int idx = src.lastIndexOf("#pragma");
-    int end = src.indexOf('\n', idx);
-    String pragArea = src.substring(0, end + 1);
-    for (String line : pragArea.split("\n")) {
-      idx = line.indexOf("//");
-      if (idx >= 0) {
-        line = line.substring(0, idx).trim();
-      }
-      if (line.startsWith("#pragma")) {
-        line = line.substring(7).trim();
-        String[] parts = Utility.parse(line);
-        if (parts.length > 1 && "chip".equals(parts[0])) {
-          if (progProtocol.containsKey(parts[1])) {
-            avrChip = parts[1];
-            targetMenu.setSelected(avrChip);
-            targetMenu.setText("Target->" + avrChip);
-            targetMenu.setEnabled(false);
-            return;
-          }
+  private void updateChip (SourceIndex source) {
+    for (SourceIndex.Pragma pragma : source.getPragmas()) {
+      String[] parts = pragma.parts;
+      if (parts.length > 1 && "chip".equals(parts[0])) {
+        if (progProtocol.containsKey(parts[1])) {
+          avrChip = parts[1];
+          targetMenu.setSelected(avrChip);
+          targetMenu.setText("Target->" + avrChip);
+          targetMenu.setEnabled(false);
+          return;
         }
       }
     }
@@ -1341,15 +1392,16 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     String exec;
     if ("ftdiprog".equals(prefs.get("programmer.programmer", null))) {
       tags.put("CFG2", tmpExe + "etc" + fileSep + "ftdiprog.conf");
-      exec = Utility.replaceTags("avrdude *[VBS]* *[OUT]* -C *[CFG]* -C +*[CFG2]* -c *[PROG]* -p *[CHIP]* " + op, tags);
+      exec = "avrdude *[VBS]* *[OUT]* -C *[CFG]* -C +*[CFG2]* -c *[PROG]* -p *[CHIP]* " + op;
     } else {
-      exec = Utility.replaceTags("avrdude *[VBS]* *[OUT]* -C *[CFG]* -c *[PROG]* -p *[CHIP]* " + op, tags);
+      exec = "avrdude *[VBS]* *[OUT]* -C *[CFG]* -c *[PROG]* -p *[CHIP]* " + op;
     }
-    String cmd = tmpExe + "bin" + fileSep + exec;
-    System.out.println("Run: " + cmd);
-    Process proc = Runtime.getRuntime().exec(cmd);
-    Utility.runCmd(proc, progPane);
-    return proc.waitFor();
+    // Show avrdude's output in the Programmer pane as it runs
+    ProcessRunner runner = new ProcessRunner(tmpExe + "bin" + fileSep, exec, tags)
+        .setListener(line -> progPane.append(line + "\n"))
+        .setTimeout(AVRDUDE_TIMEOUT);
+    System.out.println("Run: " + runner.getCommand());
+    return runner.run().exitCode;
   }
 
   private ParmDialog.ParmItem[][] getSPIFuseParms (int lFuse, int hFuse, int eFuse) {
@@ -1400,6 +1452,309 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     };
   }
 
+  /**
+   * Display the result of a build in the Listing and Hex Output panes
+   * @param result Map returned by ATTinyCompiler.compile()
+   * @param buildDir directory the build was run in (removed from file paths in messages)
+   */
+  private void showBuildResult (Map<String,String> result, String buildDir) {
+    compileMap = result;
+    String compName = "Sketch.cpp";
+    String trueName = cFile.getName();
+    if (result.containsKey("ERR")) {
+      listPane.setForeground(Color.red);
+      // Remove path to buildDir from error messages
+      String errText = result.get("ERR").replace(buildDir + compName, trueName);
+      errText = errText.replace("\n", "<br>");
+      Pattern lineRef = Pattern.compile("(" + trueName + ":([0-9]+?:[0-9]+?):) (fatal error|error|note):");
+      Matcher mat = lineRef.matcher(errText);
+      StringBuffer buf = new StringBuffer("<html><body><tt>");
+      while (mat.find()) {
+        String seq = mat.group(1);
+        if (seq != null) {
+          mat.appendReplacement(buf, "<a href=\"" + mat.group(2) +  "\">" + seq + "</a>");
+        }
+      }
+      mat.appendTail(buf);
+      buf.append("</tt></body></html>");
+      listPane.setErrorText(buf.toString());
+      compiled = false;
+    } else {
+      listPane.setForeground(Color.black);
+      StringBuilder tmp = new StringBuilder();
+      tmp.append(result.get("INFO"));
+      tmp.append("\n\n");
+      if (result.containsKey("WARN")) {
+        tmp.append(result.get("WARN"));
+        tmp.append("\n\n");
+      }
+      exportParms = result.get("XPARMS");
+      tmp.append( result.get("SIZE"));
+      if (result.containsKey("TRACE")) {
+        tmp.append("\n").append(result.get("TRACE")).append("\n");
+      }
+      String listing = tmp.toString();
+      compName = compName.substring(0, compName.indexOf("."));
+      trueName = trueName.substring(0, trueName.indexOf("."));
+      listHeader = listing.replace(buildDir + compName, trueName);
+      listPane.setText(listHeader + "(listing is generated when the Listing pane is selected)");
+      hexPane.setForeground(Color.black);
+      hexPane.setText(result.get("HEX"));
+      avrChip = result.get("CHIP");
+      compiled = true;
+      listPending = true;
+      if (tabPane.getSelectedIndex() == Tab.LIST.num) {
+        showListing();
+      }
+    }
+  }
+
+  /**
+   * Get the offset in the text of a text pane of a point in the pane using viewToModel2D(), if available
+   * (added in Java 9, which deprecates viewToModel()), else viewToModel()
+   * @return offset, or -1 if neither method can be called
+   */
+  private static int getTextOffset (JTextComponent pane, Point pt) {
+    try {
+      if (viewToModel == null) {
+        try {
+          viewToModel = JTextComponent.class.getMethod("viewToModel2D", Point2D.class);
+        } catch (NoSuchMethodException ex) {
+          viewToModel = JTextComponent.class.getMethod("viewToModel", Point.class);
+        }
+      }
+      return (Integer) viewToModel.invoke(pane, pt);
+    } catch (ReflectiveOperationException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * If the listing line at offset is a line of disassembly, use the build's line table to find the line
+   * in the source code which generated it and show that line in the Source Code pane
+   * @param offset offset into listing text
+   */
+  private void showSourceLine (int offset) {
+    Map<String,String> result = compileMap;
+    String text = listPane.getText();
+    if (result == null || !result.containsKey("ELFHASH") || offset < 0 || offset > text.length()) {
+      return;
+    }
+    int start = text.lastIndexOf('\n', Math.max(0, offset - 1)) + 1;
+    int end = text.indexOf('\n', offset);
+    Matcher mat = Pattern.compile("^\\s*([0-9a-fA-F]+):\\s").matcher(text.substring(start, end >= 0 ? end : text.length()));
+    if (mat.find()) {
+      try {
+        ElfIndex.SourceLine line = ATTinyCompiler.getIndex(result).getSourceLine(Long.parseLong(mat.group(1), 16));
+        if (line != null && new File(line.file).getName().startsWith("Sketch.")) {
+          selectTab(Tab.SRC);
+          codePane.setPosition(line.line, 1);
+        }
+      } catch (Exception ex) {
+        showErrorDialog(ex);
+      }
+    }
+  }
+
+  /**
+   * Generate the disassembly listing for the last build, if not already shown, and append it to the
+   * Listing pane (avr-objdump is run on the build thread, so the listing never delays the build)
+   */
+  private void showListing () {
+    Map<String,String> result = compileMap;
+    if (!listPending || result == null || !result.containsKey("ELFHASH")) {
+      return;
+    }
+    listPending = false;
+    String header = listHeader;
+    String buildDir = result.get("ELF").substring(0, result.get("ELF").length() - "Sketch.elf".length());
+    String trueName = cFile.getName().substring(0, cFile.getName().indexOf("."));
+    listPane.setText(header + "Generating listing...");
+    buildWorker.submit(() -> {
+      String listing;
+      try {
+        listing = ATTinyCompiler.getListing(result).replace(buildDir + "Sketch", trueName);
+      } catch (Exception ex) {
+        listing = ex.getMessage();
+      }
+      String text = header + listing;
+      SwingUtilities.invokeLater(() -> {
+        if (compileMap == result) {
+          listPane.setText(text);
+        }
+      });
+    });
+  }
+
+  /**
+   * Build the tags passed to ATTinyCompiler.compile()
+   * @param fName name of source file
+   * @param buildDir directory to build in
+   * @return Map of tags
+   */
+  private Map<String,String> getBuildTags (String fName, String buildDir) {
+    Map<String,String> tags = new HashMap<>();
+    tags.put("TDIR", buildDir);
+    tags.put("TEXE", tmpExe);
+    tags.put("IDIR", tmpExe + "avr" + fileSep + "include" + fileSep);
+    tags.put("FNAME", fName);
+    tags.put("CDIR", cacheDir);
+    tags.put("TOOLCRC", Long.toHexString(prefs.getLong("toolzip-crc", 0)));
+    if (avrChip != null) {
+      tags.put("DEFAULT.CHIP", avrChip);                    // Chip selected in "Target" menu, if no #pragma chip
+    }
+    if (prefs.getBoolean("gen_prototypes", false)) {
+      tags.put("PREPROCESS", "GENPROTOS");
+    }
+    return tags;
+  }
+
+  /**
+   * @return key for the settings, other than the source code, which change the result of a build (a background
+   *         build's result is only used for a build if the key is unchanged)
+   */
+  private String getBuildKey () {
+    return avrChip + "," + prefs.get("build_profile", "release") + "," + prefs.getBoolean("gen_prototypes", false);
+  }
+
+  /**
+   * Called when the source code, or the target chip changes to schedule a background build, if enabled,
+   * which starts once the code has been left unchanged for a short time.  Any background build in progress
+   * is cancelled, as its result would be out of date.
+   */
+  private void scheduleBackgroundBuild () {
+    specGeneration.incrementAndGet();
+    specResult = null;
+    BuildMonitor monitor = specMonitor;
+    if (monitor != null) {
+      monitor.cancel();
+    }
+    if (prefs.getBoolean("background_build", false) && cFile != null && isCSource(cFile.getName())) {
+      specTimer.restart();
+    } else {
+      specTimer.stop();
+    }
+  }
+
+  /**
+   * Start a background build of the current source code on a low priority worker thread.  The result
+   * is only displayed if the code is unchanged when the build completes.
+   */
+  private void startBackgroundBuild () {
+    if (cFile == null || !isCSource(cFile.getName())) {
+      return;
+    }
+    String fName = cFile.getName().toLowerCase();
+    String src = codePane.getText();
+    SourceIndex source = codePane.getSourceIndex().copy();
+    int generation = specGeneration.get();
+    Map<String,String> tags = getBuildTags(fName, specDir);
+    String key = getBuildKey();
+    BuildMonitor monitor = specMonitor = new BuildMonitor();
+    specWorker.submit(() -> {
+      try {
+        Map<String,String> result = ATTinyCompiler.compile(source, tags, prefs, null, monitor);
+        SwingUtilities.invokeLater(() -> {
+          if (!monitor.isCancelled() && generation == specGeneration.get() && src.equals(codePane.getText())) {
+            specSource = src;
+            specFile = fName;
+            specKey = key;
+            specResult = result;
+            showBuildResult(result, specDir);
+          }
+        });
+      } catch (Exception ex) {
+        if (generation == specGeneration.get()) {
+          ex.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Called when the target chip, or the source code changes to schedule a warm-up of the core for the chip,
+   * clock and #defines the next build will use, if they've changed.  The warm-up starts once they've been
+   * left unchanged for a short time, so the core isn't compiled for each digit typed in a #pragma clock.
+   * @param source SourceIndex of source code
+   */
+  private void scheduleCoreWarmUp (SourceIndex source) {
+    if (avrChip == null || cFile == null || !isCSource(cFile.getName())) {
+      warmTimer.stop();
+      return;
+    }
+    List<String> pragmas = new ArrayList<>();
+    for (SourceIndex.Pragma pragma : source.getPragmas()) {
+      String[] parts = pragma.parts;
+      if (parts.length > 1 && ("clock".equals(parts[0]) || "define".equals(parts[0]))) {
+        pragmas.add(pragma.text);
+      }
+    }
+    String key = avrChip + "," + pragmas + "," + prefs.get("build_profile", "release");
+    if (!key.equals(warmKey)) {
+      warmKey = key;
+      warmChip = avrChip;
+      warmPragmas = pragmas;
+      BuildMonitor monitor = warmMonitor;
+      if (monitor != null) {
+        monitor.cancel();
+      }
+      warmTimer.restart();
+    }
+  }
+
+  /**
+   * Start a warm-up of the core on the low priority background build worker, which compiles the core into
+   * the object cache and core archive, so the next build only compiles the sketch.  The warm-up is cancelled
+   * by cancelBuild(), so it yields to any build the user starts.
+   */
+  private void startCoreWarmUp () {
+    String chip = warmChip;
+    List<String> pragmas = warmPragmas;
+    Map<String,String> tags = getBuildTags("warmup.cpp", warmDir);
+    BuildMonitor monitor = warmMonitor = new BuildMonitor();
+    specWorker.submit(() -> {
+      if (monitor.isCancelled()) {
+        return;
+      }
+      try {
+        Map<String,String> result = ATTinyCompiler.warmCore(chip, pragmas, tags, prefs, monitor);
+        System.out.println("Core warm-up for " + chip + ": " + result.getOrDefault("ERR", result.get("INFO")));
+      } catch (Exception ex) {
+        if (!monitor.isCancelled()) {
+          ex.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Cancel any build in progress (along with any background build) and set up a BuildMonitor for a
+   * new build, which supersedes it.  Results from a superseded build are discarded.
+   * @return BuildMonitor for the new build
+   */
+  private BuildMonitor supersedeBuild () {
+    cancelBuild();
+    return currentBuild = new BuildMonitor();
+  }
+
+  /**
+   * Cancel the build in progress, if any, and any background build, or core warm-up, destroying their
+   * compiler processes
+   */
+  private void cancelBuild () {
+    warmTimer.stop();
+    for (BuildMonitor monitor : new BuildMonitor[] {currentBuild, specMonitor, warmMonitor}) {
+      if (monitor != null) {
+        monitor.cancel();
+      }
+    }
+  }
+
+  private static boolean isCSource (String fName) {
+    fName = fName.toLowerCase();
+    return fName.endsWith(".c") || fName.endsWith(".cpp") || fName.endsWith(".ino");
+  }
+
   private boolean canProgram () {
     if (compiled || directHex) {
       return true;
@@ -1469,16 +1824,8 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     }
     if (!reloadTools) {
       // Check for new toolchain
-      String zipFile = null;
-      if (os == OpSys.WIN) {
-        zipFile = "toolchains/WinToolchain.zip";
-      } else if (os == OpSys.MAC) {
-        zipFile = "toolchains/MacToolchain.zip";
-      } else if (os == OpSys.LINUX) {
-        zipFile = "toolchains/L64Toolchain.zip";
-      }
       long oldCrc = prefs.getLong("toolzip-crc", 0);
-      long newCrc = Utility.crcZipfile(zipFile);
+      long newCrc = Utility.crcZipfile(Utility.getToolchainZip());
       reloadTools = newCrc != oldCrc;
       prefs.putLong("toolzip-crc", newCrc);
     }
@@ -1490,13 +1837,7 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
 
   private void reloadToolchain () {
     try {
-      if (os == OpSys.WIN) {
-        loadToolchain("toolchains/WinToolchain.zip");
-      } else if (os == OpSys.MAC) {
-        loadToolchain("toolchains/MacToolchain.zip");
-      } else if (os == OpSys.LINUX) {
-        loadToolchain("toolchains/L64Toolchain.zip");
-      }
+      loadToolchain(Utility.getToolchainZip());
       /*
       // Create and save ftdipro.conf file
       String ftdiprog = "programmer\n" +
@@ -1543,48 +1884,8 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
         if (!dst.exists() && !dst.mkdirs()) {
           throw new IllegalStateException("Unable to create directory: " + dst);
         }
-        ZipInputStream zipStream = null;
-        try {
-          InputStream in = ATTinyC.class.getResourceAsStream(srcZip);
-          int fileSize = in.available();
-          zipStream = new ZipInputStream(in);
-          byte[] buffer = new byte[2048];
-          Path outDir = Paths.get(dst.getPath());
-          int bytesRead = 0;
-          progress.setMaximum(100);
-          ZipEntry entry;
-          while ((entry = zipStream.getNextEntry()) != null) {
-            String src = entry.getName();
-            Path filePath = outDir.resolve(src);
-            File dstDir = filePath.toFile().getParentFile();
-            if (!dstDir.exists() && !dstDir.mkdirs()) {
-              throw new IllegalStateException("Unable to create directory: " + dstDir);
-            }
-            File dstFile = filePath.toFile();
-            FileOutputStream fos = new FileOutputStream(dstFile);
-            BufferedOutputStream bos = new BufferedOutputStream(fos, buffer.length);
-            int len;
-            while ((len = zipStream.read(buffer)) > 0) {
-              bos.write(buffer, 0, len);
-              bytesRead += len;
-            }
-            bos.close();
-            fos.close();
-            // Must set permissions after file is written or it doesn't take...
-            String file = dstFile.getName();
-            if (!file.contains(".") || file.toLowerCase().endsWith(".exe")) {
-              if (!dstFile.setExecutable(true)) {
-                showErrorDialog("Unable to set permissions for " + dstFile);
-              }
-            }
-            float percent = ((float) bytesRead / fileSize) * 100;
-            progress.setValue((int) percent);
-          }
-        } finally {
-          if (zipStream != null) {
-            zipStream.close();
-          }
-        }
+        progress.setMaximum(100);
+        Utility.unzipResource(srcZip, dst, progress::setValue);
       } catch (Exception ex) {
         ex.printStackTrace();
         showErrorDialog("ToolchainLoader.run() exception " + ex.getMessage());
@@ -1610,7 +1911,7 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
     }
   }
 
-  private static CodeImage parseIntelHex (String hex) {
+  static CodeImage parseIntelHex (String hex) {
     byte fuses = 0x0F;
     ArrayList<Byte> buf = new ArrayList<>();
     nextLine:
@@ -1700,6 +2001,10 @@ public class ATTinyC extends JFrame implements JSSCPort.RXEvent {
   }
 
   public static void main (String[] args) {
+    if (args.length > 0 && CommandLine.isCommand(args[0])) {
+      // Run headless command, such as "build"
+      System.exit(CommandLine.run(args));
+    }
     java.awt.EventQueue.invokeLater(ATTinyC::new);
   }
 }
@@ -1,12 +1,14 @@
-import cpp14.CPP14ProtoGen;
-
 import javax.swing.*;
 import java.io.*;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.prefs.Preferences;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /*
    * GNU Toolchain Controller for Compiling and Assembling code for ATTiny10 Series Chips
@@ -19,6 +21,7 @@ import java.util.regex.Pattern;
 
 class ATTinyCompiler {
   private static final String fileSep = System.getProperty("file.separator");
+  private static final long   TOOL_TIMEOUT = 5 * 60 * 1000;          // Time limit for one toolchain command (ms)
 
   private static final String prePro =  "avr-g++ " +                  // https://linux.die.net/man/1/avr-g++
                                         "-w " +                       // Inhibit all warning messages
@@ -32,10 +35,10 @@ class ATTinyCompiler {
                                         "-DARDUINO_ARCH_AVR " +       // #define ARDUINO_ARCH_AVR
                                         "*[TDIR]**[IFILE]* ";         // Source file is temp/IFILE.x
 
-  private static final String compCpp = "avr-g++ " +                  // https://linux.die.net/man/1/avr-g++
+  static final String         compCpp = "avr-g++ " +                  // https://linux.die.net/man/1/avr-g++
                                         "-c " +                       // Compile but do not link
                                         "-g " +                       // Enable link-time optimization
-                                        "-Os " +                      // Optimize for size
+                                        "*[OPTIMIZE]* " +             // Optimization level set by build profile
                                         "-w " +                       // Inhibit all warning messages
                                         "-std=gnu++11 " +             // Support GNU extensions to C++
                                         "-fpermissive " +             // Downgrade nonconformant code errors to warnings
@@ -44,8 +47,8 @@ class ATTinyCompiler {
                                         "-fdata-sections " +          // Separate data in output file
                                         "-fno-threadsafe-statics " +  // No extra code for C++ ABI routines
                                         "-MMD " +                     // Mention only user header files
-                                        "-flto " +                    // Run standard link optimizer (requires 5.4.0)
-                                        "-DLTO_ENABLED " +
+                                        "-fpch-deps " +               // Also list headers in a precompiled header used
+                                        "*[LTO]* " +                  // Link-time optimization, if build profile uses it
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "-DF_CPU=*[CLOCK]* " +        // Create #define for F_CPU
                                         "-DARDUINO_ARCH_AVR " +       // #define ARDUINO_ARCH_AVR
@@ -57,13 +60,12 @@ class ATTinyCompiler {
   private static final String compC = "avr-gcc " +                    // https://linux.die.net/man/1/avr-gcc
                                         "-c " +                       // Compile but do not link
                                         "-g " +                       // Enable link-time optimization
-                                        "-Os " +                      // Optimize for size
+                                        "*[OPTIMIZE]* " +             // Optimization level set by build profile
                                         "-w " +                       // Inhibit all warning messages.
                                         "-std=gnu11 " +
                                         "-ffunction-sections " +      // Separate functions in output file
                                         "-fdata-sections " +          // Separate data in output file
-                                        "-flto " +                    // Run standard link optimizer (requires 5.4.0)
-                                        "-DLTO_ENABLED " +
+                                        "*[LTO]* " +                  // Link-time optimization, if build profile uses it
                                         "-DF_CPU=*[CLOCK]* " +        // Create #define for F_CPU
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "-DARDUINO_ARCH_AVR " +       // #define ARDUINO_ARCH_AVR
@@ -78,8 +80,7 @@ class ATTinyCompiler {
                                         "-c " +                       // Compile but do not link
                                         "-g " +                       // Enable link-time optimization
                                         "-x assembler-with-cpp " +    //
-                                        "-flto " +                    // Run standard link optimizer (requires 5.4.0)
-                                        "-DLTO_ENABLED " +            //
+                                        "*[LTO]* " +                  // Link-time optimization, if build profile uses it
                                         "-DF_CPU=*[CLOCK]* " +        // Create #define for F_CPU
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "-DARDUINO_ARCH_AVR " +       // #define ARDUINO_ARCH_AVR
@@ -90,140 +91,256 @@ class ATTinyCompiler {
 
   private static final String link = "avr-gcc " +                     // https://linux.die.net/man/1/avr-g++
                                         "-w " +                       // Inhibit all warning messages.
-                                        "-Os " +                      // Optimize for size
+                                        "*[OPTIMIZE]* " +             // Optimization level set by build profile
                                         "-g " +                       // Enable link-time optimization
-                                        "-flto " +                    // Run standard link optimizer (requires 5.4.0)
-                                        "-DLTO_ENABLED " +            // ??
+                                        "*[LTO]* " +                  // Link-time optimization, if build profile uses it
                                         "-fuse-linker-plugin " +      // Enable link-time optimization (requires 5.4.0)
                                         "-Wl,--gc-sections " +        // Eliminate unused code
                                         "-Wl,--print-gc-sections " +  // Print dead code removed
                                         "-DF_CPU=*[CLOCK]* " +        // Create #define for F_CPU
                                         "-mmcu=*[CHIP]* " +           // Select CHIP microcontroller type
                                         "-o *[TDIR]**[OFILE]* " +     // Output to file temp/OFILE
-                                        "*[LIST]*" +                  // List of files to link (each prefixed by temp/)
+                                        "*[LIST]* " +                 // List of files to link (each prefixed by temp/)
                                         "-L*[TDIR]* " +               // Also search in temp dir for -l option
                                         "-lm ";                       // Link Math library (??)
 
+  private static final String archive = "avr-gcc-ar " +               // https://linux.die.net/man/1/avr-ar (LTO plugin aware)
+                                        "rcs " +                      // Replace members, create archive and write index
+                                        "*[ARCHIVE]* " +              // Archive file
+                                        "*[OBJS]*";                   // Object files to add (each prefixed by temp/)
+
+  private static final String nameList = "avr-gcc-nm " +              // https://linux.die.net/man/1/avr-nm (LTO plugin aware)
+                                        "*[OBJS]*";                   // Object files to list (each prefixed by temp/)
+
   private static final String list = "avr-objdump " +                 // https://linux.die.net/man/1/avr-objdump
                                         "-d " +                       // Disassemble code
                                         "*[INTLV]* " +                // Display source  code  intermixed  with  disassembly
                                         "-t " +                       // Print the symbol table entries
-                                        "*[TDIR]*Sketch.elf";         // Input file
-
-  private static final String tohex = "avr-objcopy " +                // https://linux.die.net/man/1/avr-objcopy
-                                        "-O ihex " +                  // Output format is Intel HEX
-                                        "-R .eeprom " +               // Remove .eeprom section (!!!)
-                                        "*[TDIR]*Sketch.elf " +       // Input file
-                                        "*[TDIR]*Sketch.hex";         // Output file
-
-  private static final String size = "avr-size " +                    // https://linux.die.net/man/1/avr-size
-                                        "-A " +                       //
-                                        "*[TDIR]*Sketch.elf";         // Input file
+                                        "*[ELF]*";                    // Input file
 
   private static final String[][] asm = {
       {"COMP1", "avr-as -mmcu=*[CHIP]* -I *[IDIR]* *[TDIR]*Sketch.S -o *[TDIR]*Sketch.o "},
       {"COMP2", "avr-ld -mavrtiny *[TDIR]*Sketch.o -o *[TDIR]*Sketch.elf "},
-      {"TOHEX", tohex},
-      {"LST", list},
-      {"SIZE", size},
   };
 
-  private static final String[][] build = {
-      {"TOHEX", tohex},
-      {"LST", list},   // Note add "-l' for source path and line numbers (Warning: large lines!)
-      {"SIZE", size},
+  // Listings generated by getListing(), keyed by hash of Sketch.elf and INTLV tag (most recently used last)
+  private static final Map<String, String> listings = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
+      return size() > 4;
+    }
+  };
+
+  // Indexes built by getIndex(), keyed by hash of Sketch.elf (most recently used last)
+  private static final Map<String, ElfIndex> indexes = new LinkedHashMap<String, ElfIndex>(16, 0.75f, true) {
+    protected boolean removeEldestEntry (Map.Entry<String, ElfIndex> eldest) {
+      return size() > 4;
+    }
   };
 
+  // Build profiles, which set the *[OPTIMIZE]* and *[LTO]* tags: "release" optimizes for size using link-time
+  // optimization (requires 5.4.0) and "fast", for edit and compile loops, skips the LTO pass at link time
+  static final Map<String, String[]> profiles = new LinkedHashMap<>();
   private static final Map<String, Integer> fuses = new HashMap<>();
 
   static {
+    profiles.put("release", new String[] {"-Os", "-flto -DLTO_ENABLED"});
+    profiles.put("fast",    new String[] {"-O1", ""});
     // Define fuse bits
     fuses.put("ckout", 4);    // System Clock Output
     fuses.put("wdton", 2);    // Watchdog Timer Always On
     fuses.put("rstdisbl", 1); // External Reset Disable
   }
 
+  /**
+   * Compile, or assemble source code using the GNU toolchain
+   * @param src source code
+   * @param tags tags used to build commands (TDIR, TEXE and FNAME are required, OVERRIDE.CHIP, OVERRIDE.CLOCK,
+   *             OVERRIDE.FUSES, OVERRIDE.LFUSE, OVERRIDE.HFUSE and OVERRIDE.EFUSE replace #pragma values and
+   *             DEFAULT.CHIP sets the chip used if there's no #pragma chip)
+   * @param prefs Preferences
+   * @param tinyIde parent frame for progress bar, or null for no progress bar (for background builds)
+   * @return Map of results (contains "ERR" if build failed)
+   */
   static Map<String, String> compile (String src, Map<String, String> tags, Preferences prefs, JFrame tinyIde) throws Exception {
+    return compile(src, tags, prefs, tinyIde, new BuildMonitor());
+  }
+
+  /**
+   * Compile, or assemble source code using the GNU toolchain under the control of a BuildMonitor.  If
+   * the build is cancelled, any partial outputs are removed from the build directory.
+   * @param src source code
+   * @param tags tags used to build commands (TDIR, TEXE and FNAME are required)
+   * @param prefs Preferences
+   * @param tinyIde parent frame for progress bar, or null for no progress bar (for background builds)
+   * @param monitor BuildMonitor used to start processes and cancel the build
+   * @return Map of results (contains "ERR" if build failed and "CANCELLED" if it was cancelled)
+   */
+  static Map<String, String> compile (String src, Map<String, String> tags, Preferences prefs, JFrame tinyIde,
+                                      BuildMonitor monitor) throws Exception {
+    return compile(new SourceIndex(src), tags, prefs, tinyIde, monitor);
+  }
+
+  /**
+   * Compile, or assemble source code using a SourceIndex of the code, such as the one kept up to date by
+   * the editor, so the code's #pragma and #include directives don't need to be scanned again
+   * @param source SourceIndex of source code (not used by any other thread during the build)
+   * @param tags tags used to build commands (TDIR, TEXE and FNAME are required)
+   * @param prefs Preferences
+   * @param tinyIde parent frame for progress bar, or null for no progress bar (for background builds)
+   * @param monitor BuildMonitor used to start processes and cancel the build
+   * @return Map of results (contains "ERR" if build failed and "CANCELLED" if it was cancelled)
+   */
+  static Map<String, String> compile (SourceIndex source, Map<String, String> tags, Preferences prefs, JFrame tinyIde,
+                                      BuildMonitor monitor) throws Exception {
+    Map<String, String> out = null;
+    BuildTrace trace = monitor.getTrace();
+    BuildTrace.Span span = trace.begin("Build", "build");
+    try {
+      out = runBuild(source, tags, prefs, tinyIde, monitor);
+    } catch (BuildMonitor.CancellationException ex) {
+      // Handled below
+    } finally {
+      span.close();
+    }
+    if (monitor.isCancelled()) {
+      Utility.removeUnsyncedFiles(tags.get("TDIR"));
+      out = new HashMap<>();
+      out.put("ERR", "Build cancelled");
+      out.put("CANCELLED", "true");
+    }
+    out.put("TRACE", trace.getSummary());
+    out.put("TRACEJSON", trace.toChromeTrace());
+    return out;
+  }
+
+  /**
+   * Compile the core for a chip, clock and #defines, so the next build for them only compiles the sketch.  A
+   * placeholder sketch which includes Arduino.h is compiled without using the core's symbol index, so every
+   * core file is compiled and saved in the core archive (and the object cache), but isn't linked.  If the
+   * warm-up is cancelled, the core objects compiled so far stay in the object cache.
+   * @param chip chip to compile core for
+   * @param pragmas #pragma clock and #pragma define directives (such as "clock 8000000") from the sketch
+   * @param tags tags used to build commands (TDIR, TEXE, CDIR and IDIR are required)
+   * @param prefs Preferences
+   * @param monitor BuildMonitor used to cancel the warm-up
+   * @return Map of results (contains "ERR" if warm-up failed and "CANCELLED" if it was cancelled)
+   */
+  static Map<String, String> warmCore (String chip, List<String> pragmas, Map<String, String> tags, Preferences prefs,
+                                       BuildMonitor monitor) throws Exception {
+    StringBuilder src = new StringBuilder();
+    for (String pragma : pragmas) {
+      src.append("#pragma ").append(pragma).append("\n");
+    }
+    src.append("#include <Arduino.h>\n\nvoid setup () {}\n\nvoid loop () {}\n");
+    tags.put("FNAME", "warmup.cpp");
+    tags.put("OVERRIDE.CHIP", chip);
+    tags.put("WARMUP", "true");
+    tags.remove("PREPROCESS");
+    return compile(src.toString(), tags, prefs, null, monitor);
+  }
+
+  private static Map<String, String> runBuild (SourceIndex source, Map<String, String> tags, Preferences prefs,
+                                               JFrame tinyIde, BuildMonitor monitor) throws Exception {
+    String src = source.getText();
     String tmpDir = tags.get("TDIR");
     String tmpExe = tags.get("TEXE");
     String srcName = tags.get("FNAME").toLowerCase();
-    Utility.removeFiles(new File(tmpDir));
     boolean doAsm = srcName.endsWith(".s");
     boolean isCCode = srcName.endsWith(".c") || srcName.endsWith(".cpp") || srcName.endsWith(".ino");
     boolean preOnly = isCCode && "PREONLY".equals(tags.get("PREPROCESS"));
     boolean genProto = isCCode && "GENPROTOS".equals(tags.get("PREPROCESS"));
     byte fuseBits = 0x0F;
     String clock = null;
-    String chip = "attiny10";
+    String chip = tags.getOrDefault("DEFAULT.CHIP", "attiny10");
+    boolean warmUp = tags.containsKey("WARMUP");
     StringBuilder defines = new StringBuilder();
     Map<String, String> out = new HashMap<>();
     List<String> warnings = new ArrayList<>();
-    Map<String, Integer[]> exports = new LinkedHashMap<>();
-    // Process #pragma and #include directives
-    int lineNum = 0;
-    int LastIncludeLine = 1;
-    for (String line : src.split("\n")) {
-      lineNum++;
-      int idx = line.indexOf("//");
-      if (idx >= 0) {
-        line = line.substring(0, idx).trim();
-      }
-      if (line.startsWith("#pragma")) {
-        line = line.substring(7).trim();
-        String[] parts = Utility.parse(line);
-        if (parts.length > 1) {
-          tags.put("PRAGMA." + parts[0].toUpperCase(), parts[1]);
-          switch (parts[0]) {
-            case "fuses":                                         // Attiny4,5,9,10 fuse bits
-              byte tmp = 0;
-              for (int ii = 1; ii < parts.length; ii++) {
-                if (fuses.containsKey(parts[ii])) {
-                  tmp |= (byte) fuses.get(parts[ii]).intValue();
-                } else {
-                  System.out.println("#pragma unknown fuse: " + parts[ii]);
-                  out.put("ERR", "#pragma unknown fuse: " + parts[ii]);
-                  return out;
-                }
+    Set<String> exports = new LinkedHashSet<>();
+    // Process #pragma directives
+    for (SourceIndex.Pragma pragma : source.getPragmas()) {
+      String line = pragma.text;
+      String[] parts = pragma.parts;
+      if (parts.length > 1) {
+        tags.put("PRAGMA." + parts[0].toUpperCase(), parts[1]);
+        switch (parts[0]) {
+          case "fuses":                                         // Attiny4,5,9,10 fuse bits
+            byte tmp = 0;
+            for (int ii = 1; ii < parts.length; ii++) {
+              if (fuses.containsKey(parts[ii])) {
+                tmp |= (byte) fuses.get(parts[ii]).intValue();
+              } else {
+                System.out.println("#pragma unknown fuse: " + parts[ii]);
+                out.put("ERR", "#pragma unknown fuse: " + parts[ii]);
+                return out;
               }
-              fuseBits = (byte) ~tmp;
-              out.put("FUSES", "0x" + Integer.toHexString(fuseBits));
-              break;
-            case "clock":                                         // Sets F_CPU #define
-              clock = parts[1];
-              break;
-            case "chip":                                          // Sets -mmcu compile option
-              chip = parts[1];
-              break;
-            case "define":                                        // Sets -D compile option to parts[1]
-              defines.append("-D").append(parts[1]).append(" ");
-              break;
-            case "hfuse":
-              out.put("HFUSE", parts[1]);                         // Sets value of *[HFUSE]* tag in "out" Map
-              break;
-            case "lfuse":
-              out.put("LFUSE", parts[1]);                         // Sets value of *[LFUSE]* tag in "out" Map
-              break;
-            case "efuse":
-              out.put("EFUSE", parts[1]);                         // Sets value of *[EFUSE]* tag in "out" Map
-              break;
-            case "xparm":                                         // Defines exported parameter
-              exports.put(parts[1], new Integer[0]);
-              break;
-            default:
-              warnings.add("Unknown pragma: " + line + " (ignored)");
-              break;
-          }
-        } else {
-          warnings.add("Invalid pragma: " + line + " (ignored)");
+            }
+            fuseBits = (byte) ~tmp;
+            out.put("FUSES", "0x" + Integer.toHexString(fuseBits));
+            break;
+          case "clock":                                         // Sets F_CPU #define
+            clock = parts[1];
+            break;
+          case "chip":                                          // Sets -mmcu compile option
+            chip = parts[1];
+            break;
+          case "define":                                        // Sets -D compile option to parts[1]
+            defines.append("-D").append(parts[1]).append(" ");
+            break;
+          case "hfuse":
+            out.put("HFUSE", parts[1]);                         // Sets value of *[HFUSE]* tag in "out" Map
+            break;
+          case "lfuse":
+            out.put("LFUSE", parts[1]);                         // Sets value of *[LFUSE]* tag in "out" Map
+            break;
+          case "efuse":
+            out.put("EFUSE", parts[1]);                         // Sets value of *[EFUSE]* tag in "out" Map
+            break;
+          case "xparm":                                         // Defines exported parameter
+            exports.add(parts[1]);
+            break;
+          default:
+            warnings.add("Unknown pragma: " + line + " (ignored)");
+            break;
         }
-      } else if (line.startsWith("#include")) {
-        LastIncludeLine = Math.max(LastIncludeLine, lineNum);
+      } else {
+        warnings.add("Invalid pragma: " + line + " (ignored)");
+      }
+    }
+    // Apply OVERRIDE.* tags (such as from command line options), which take precedence over #pragma values
+    chip = tags.getOrDefault("OVERRIDE.CHIP", chip);
+    clock = tags.getOrDefault("OVERRIDE.CLOCK", clock);
+    if (tags.containsKey("OVERRIDE.FUSES")) {
+      byte tmp = 0;
+      for (String fuse : tags.get("OVERRIDE.FUSES").split("[,\\s]+")) {
+        if (fuses.containsKey(fuse.toLowerCase())) {
+          tmp |= (byte) fuses.get(fuse.toLowerCase()).intValue();
+        } else if (fuse.length() > 0) {
+          out.put("ERR", "Unknown fuse: " + fuse);
+          return out;
+        }
+      }
+      fuseBits = (byte) ~tmp;
+      out.put("FUSES", "0x" + Integer.toHexString(fuseBits));
+    }
+    for (String fuse : new String[] {"LFUSE", "HFUSE", "EFUSE"}) {
+      if (tags.containsKey("OVERRIDE." + fuse)) {
+        out.put(fuse, tags.get("OVERRIDE." + fuse));
       }
     }
     tags.put("CHIP", chip);
     tags.put("INTLV", prefs.getBoolean("interleave", true) ? "-S" : "");
     tags.put("CLOCK", clock != null ? clock : "8000000");
     tags.put("DEFINES", defines.toString());
+    String profile = tags.getOrDefault("OVERRIDE.PROFILE", prefs.get("build_profile", "release")).toLowerCase();
+    if (!profiles.containsKey(profile)) {
+      out.put("ERR", "Unknown build profile: " + profile);
+      return out;
+    }
+    tags.put("PROFILE", profile);
+    tags.put("OPTIMIZE", profiles.get(profile)[0]);
+    tags.put("LTO", profiles.get(profile)[1]);
+    out.put("PROFILE", profile);
     // Build list of files we need to compile and link
     ATTinyC.ChipInfo chipInfo = ATTinyC.progProtocol.get(chip.toLowerCase());
     if (chipInfo == null) {
@@ -235,8 +352,22 @@ class ATTinyCompiler {
       out.put("INFO", "chip: " + chip + ", clock: " + tags.get("CLOCK") + ", lfuse: " + out.get("LFUSE") +
           ", hfuse: " + out.get("HFUSE") + ", efuse: " + out.get("EFUSE"));
     }
+    if (!doAsm) {
+      out.put("INFO", out.get("INFO") + ", profile: " + profile);
+    }
     ATTinyC.ProgressBar progress = null;
+    String hex;
+    ElfFile elf;
     try {
+      // Update tmpDir so it holds only the "core", core "variant" and "lib" files the compiler can reference
+      BuildTrace.Span sync = monitor.getTrace().begin("SYNC", "resources");
+      try {
+        int written = doAsm ? Utility.syncResourcesToDir(tmpDir)
+                            : Utility.syncResourcesToDir(tmpDir, chipInfo.core, chipInfo.variant, chipInfo.libs);
+        System.out.println("Synchronized " + tmpDir + " (" + written + " files written)");
+      } finally {
+        sync.close();
+      }
       // Copy contents of "source" pane to Sketch file with appropriate extension for code type
       String mainFile = doAsm ? "Sketch.S" : "Sketch.cpp";
       Utility.saveFile(tmpDir + mainFile, src);
@@ -244,82 +375,60 @@ class ATTinyCompiler {
       if (doAsm) {
         // Assemble AVR code using GNU assembler
         for (String[] seq : asm) {
-          String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + seq[1], tags);
-          System.out.println("Run: " + cmd);
-          Process proc = Runtime.getRuntime().exec(cmd);
-          String ret = Utility.runCmd(proc);
-          int retVal = proc.waitFor();
-          if (retVal != 0) {
-            tags.put("ERR", ret);
+          ProcessRunner.Result res = runTool(seq[0], seq[1], tags, monitor, seq[0].startsWith("COMP"), null);
+          if (res.exitCode != 0) {
+            tags.put("ERR", res.output);
             return tags;
           }
-          out.put(seq[0], ret);
+          out.put(seq[0], res.output);
         }
       } else {
-        List<String> compFiles = new ArrayList<>();
-        compFiles.add(mainFile);
-        // Copy "core" and core "variant" files into tmpDir so compiler can reference them
-        Utility.copyResourcesToDir(chipInfo.core, tmpDir);
-        Utility.copyResourcesToDir(chipInfo.variant, tmpDir);
-        File[] coreFiles = (new File(tmpDir)).listFiles();
-        // Copy "lib" files into tmpDir so compiler can reference them
-        Utility.copyResourcesToDir(chipInfo.libs, tmpDir);
+        // List "core" and core "variant" files (all are compiled if Arduino.h is included)
+        Set<String> coreNames = new TreeSet<>();
+        for (String base : new String[] {chipInfo.core, chipInfo.variant}) {
+          if (base != null) {
+            coreNames.addAll(Utility.getResourceIndex(base).keySet());
+          }
+        }
+        File[] coreFiles = new File[coreNames.size()];
+        int idx = 0;
+        for (String name : coreNames) {
+          coreFiles[idx++] = new File(tmpDir + name);
+        }
         if (preOnly || genProto) {
           try {
-            // Preprocess .cpp source code using GNU c++ compiler
+            // Preprocess .cpp source code using GNU c++ compiler and, unless the full output is wanted, filter
+            // its output as it's generated, keeping only the section for Sketch.cpp
             tags.put("IFILE", "Sketch.cpp");
-            String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + prePro, tags);
-            System.out.println("Run: " + cmd);
-            Process proc = Runtime.getRuntime().exec(cmd);
-            String ret = Utility.runCmd(proc);
-            int retVal = proc.waitFor();
-            if (retVal != 0) {
-              tags.put("ERR", ret);
-              return tags;
-            }
-            // Scan preprocess output for line markers and extract section for Sketch.cpp
-            StringTokenizer lines = new StringTokenizer(ret, "\n");
-            StringBuilder buf = new StringBuilder();
-            boolean inSketch = false;
-            boolean lineMarkerFound = false;
-            Pattern lMatch = Pattern.compile("#\\s\\d+\\s\"(.*?)\"");
+            StringBuilder pre = new StringBuilder();
             String pathPat = tmpDir + "Sketch.cpp";
-            String osName = System.getProperty("os.name").toLowerCase();
-            if (osName.contains("win")) {
-              pathPat = pathPat.replace("\\", "\\\\");
+            if (System.getProperty("os.name").toLowerCase().contains("win")) {
+              pathPat = pathPat.replace("\\", "\\\\");            // Line markers escape '\' as "\\"
             }
-            while (lines.hasMoreElements()) {
-              String line = lines.nextToken();
-              Matcher mat = lMatch.matcher(line);
-              if (mat.find()) {
-                String seq = mat.group(1);
-                inSketch = seq.equals(pathPat);
-                if (!lineMarkerFound) {
-                  buf.append(line).append("\n");
-                  lineMarkerFound = true;
-                }
-              } else if (inSketch) {
-                buf.append(line);
-                buf.append("\n");
-              }
+            Consumer<String> filter = preOnly ? line -> pre.append(line).append("\n") : new SketchFilter(pathPat, pre);
+            ProcessRunner runner = getRunner(prePro, tags, monitor, false).setStdoutConsumer(filter);
+            ProcessRunner.Result res = runTool("PREPRO", runner, monitor, null);
+            if (res.exitCode != 0) {
+              tags.put("ERR", res.output);
+              return tags;
             }
             // Generate prototypes
             if (genProto) {
               // Copy protos and source into Sketch.cpp and continue build
-              String protos = CPP14ProtoGen.getPrototypes(buf.toString());
-              lineNum = 0;
-              buf = new StringBuilder();
-              for (String line : src.split("\n")) {
-                lineNum++;
-                buf.append(line).append("\n");
-                if (lineNum == LastIncludeLine) {
-                  buf.append(protos).append("#line ").append(lineNum + 1).append("\n");
-                }
+              String protos;
+              try (BuildTrace.Span span = monitor.getTrace().begin("PROTOS", "java")) {
+                protos = PrototypeCache.getPrototypes(pre.toString());
+                span.setBytes(protos.length());
               }
-              Utility.saveFile(tmpDir + mainFile, buf.toString());
+              // Insert protos after the last #include line and restore the line numbering for the lines which follow
+              int next = source.getLastIncludeLine() + 1;
+              boolean last = next > source.getLineCount();
+              int split = last ? src.length() : source.getLineStart(next);
+              Utility.saveFile(tmpDir + mainFile, src.substring(0, split) + (last ? "\n" : "") + protos + "#line " + next +
+                                                  "\n" + src.substring(split));
             } else {
               // Return just the preprocessed source
-              out.put("PRE", ret);
+              out.put("PRE", pre.toString());
               return out;
             }
           } catch (Exception ex) {
@@ -328,7 +437,6 @@ class ATTinyCompiler {
             return tags;
           }
         }
-        StringBuilder linkList = new StringBuilder();
         Map<String,String> codeFiles = new HashMap<>();
         File[] files = (new File(tmpDir)).listFiles();
         if (files != null) {
@@ -341,94 +449,125 @@ class ATTinyCompiler {
           }
         }
         // Compile source code and add in included code files as they are discovered
-        progress = new ATTinyC.ProgressBar(tinyIde, "Compiling and Building");
-        progress.setMaximum(compFiles.size());
-        int progCount = 0;
-        progress.setValue(progCount);
-        for (int ii = 0; ii < compFiles.size(); ii++) {
-          String compFile = compFiles.get(ii);
-          linkList.append(tmpDir).append(compFile).append(".o ");
-          String cmd = getCompileCommand(compFile, tags);
-          System.out.println("Run: " + cmd);
-          Process proc = Runtime.getRuntime().exec(cmd);
-          String ret = Utility.runCmd(proc);
-          int retVal = proc.waitFor();
-          if (retVal != 0) {
-            String msg = "While Compiling\n" + ret;
+        if (tinyIde != null) {
+          progress = new ATTinyC.ProgressBar(tinyIde, "Compiling and Building");
+        }
+        ObjectCache cache = null;
+        if (tags.containsKey("CDIR")) {
+          cache = ObjectCache.get(tags.get("CDIR"), prefs.getInt("object_cache_mb", 64) * 1024L * 1024L);
+        }
+        // Skip compiling the core if an archive was already built for this chip, clock and #defines, otherwise,
+        // if the core's symbol index was saved by an earlier build, compile only the core files the sketch needs
+        Set<String> coreSources = getCoreSources(coreFiles, mainFile);
+        if (warmUp && (cache == null || coreSources.isEmpty())) {
+          // Nothing to warm up, as there's no object cache, or the core is only headers
+          return out;
+        }
+        Set<String> prebuilt = new HashSet<>();
+        String coreDir = null, coreLib = null;
+        File symFile = null;
+        SymbolIndex coreIndex = null;
+        if (cache != null && !coreSources.isEmpty()) {
+          coreDir = tags.get("CDIR") + "cores" + fileSep;
+          coreLib = "core_" + getCoreKey(coreFiles, mainFile, tags, true);
+          File coreArchive = new File(coreDir + "lib" + coreLib + ".a");
+          // Which core file defines each symbol doesn't depend on the clock, so the index is shared by all clocks
+          symFile = new File(coreDir + "core_" + getCoreKey(coreFiles, mainFile, tags, false) + ".nm");
+          if (coreArchive.exists()) {
+            coreArchive.setLastModified(System.currentTimeMillis());
+            prebuilt.addAll(coreSources);
+          } else if (symFile.exists() && !warmUp) {
+            symFile.setLastModified(System.currentTimeMillis());
+            coreIndex = new SymbolIndex(Utility.getFile(symFile.getPath()), null);
+          }
+        }
+        // Use a precompiled Arduino.h built for this chip, clock and #defines, so C++ files which #include it first
+        // (such as the sketch) don't parse it, and the AVR libc headers it includes, on every compile
+        if (coreLib != null && new File(tmpDir + "Arduino.h").exists()) {
+          for (String include : source.getIncludes()) {
+            if (include.toLowerCase().contains("arduino.h")) {
+              installHeader(new File(coreDir + coreLib + ".gch"), tags, monitor);
+              break;
+            }
+          }
+        }
+        String info = out.get("INFO");
+        ProcessRunner.Result res;
+        while (true) {
+          List<String> compFiles = new ArrayList<>();
+          List<String> cached = new ArrayList<>();
+          String err = compileAll(mainFile, source.getIncludes(), codeFiles, coreFiles, tags, cache, prebuilt, coreIndex, compFiles,
+                                  cached, progress, monitor);
+          if (err != null) {
+            String msg = "While Compiling\n" + err;
             System.out.println(msg);
             tags.put("ERR", msg);
             return tags;
           }
-          // Scan .d file for include files that need to also be compiled
-          String buf = Utility.getFile(tmpDir + compFile + ".d");
-          StringTokenizer tok = new StringTokenizer(buf, "\n");
-          while (tok.hasMoreElements()) {
-            String line = tok.nextToken().trim();
-            line = line.substring(tmpDir.length());
-            if (!line.contains(mainFile)) {
-              if (line.endsWith("\\")) {
-                line = line.substring(0, line.length() - 1).trim();
-              }
-              String[] parts = line.split("\\.");
-              if (parts.length > 1 && "h".equals(parts[1])) {
-                String codeFile = codeFiles.get(parts[0].toLowerCase());
-                if (codeFile != null) {
-                  // Add in code file matching #included header
-                  if (!compFiles.contains(codeFile)) {
-                    compFiles.add(codeFile);
-                    progress.setMaximum(compFiles.size());
-                  }
-                } else if ("arduino".equals(parts[0].toLowerCase())) {
-                  // Add all core files into the list of source files to compile (can we improve this?)
-                  if (coreFiles != null) {
-                    for (File file : coreFiles) {
-                      String fName = file.getName();
-                      String[] cParts = fName.toLowerCase().split("\\.");
-                      if (cParts.length == 2 && ("cpp".equals(cParts[1]) || "c".equals(cParts[1]))) {
-                        if (!compFiles.contains(fName)) {
-                          compFiles.add(fName);
-                        }
-                      }
-                    }
-                  }
-                }
-              }
+          boolean coreUsed = !Collections.disjoint(compFiles, coreSources);
+          boolean useArchive = coreUsed && !prebuilt.isEmpty();
+          if (coreLib != null && prebuilt.isEmpty() && compFiles.containsAll(coreSources)) {
+            useArchive = buildCoreArchive(coreDir, coreLib, coreSources, tags, monitor);
+            if (!symFile.exists()) {
+              buildSymbolIndex(symFile, coreSources, tags, monitor);
+            }
+          }
+          List<String> linkList = new ArrayList<>();
+          for (String compFile : compFiles) {
+            if (!useArchive || !coreSources.contains(compFile)) {
+              linkList.add(tmpDir + compFile + ".o");
             }
           }
-          progress.setValue(++progCount);
+          if (useArchive) {
+            linkList.add("-L" + coreDir);
+            linkList.add("-l" + coreLib);
+          }
+          if (cache != null) {
+            System.out.println("Object cache: " + cache);
+            int coreCount = 0;
+            for (String compFile : compFiles) {
+              coreCount += coreSources.contains(compFile) ? 1 : 0;
+            }
+            out.put("INFO", info + ", cached objects: " + cached.size() + " of " +
+                    (compFiles.size() - prebuilt.size()) + (useArchive ? ", core archive: lib" + coreLib + ".a" : "") +
+                    (coreIndex != null ? ", core files: " + coreCount + " of " + coreSources.size() : ""));
+          }
+          if (warmUp) {
+            // The core archive is built, so there's no need to link the placeholder sketch
+            return out;
+          }
+          // Link all object files
+          tags.put("OFILE", "Sketch.elf");
+          res = runTool("LINK", getRunner(link, tags, Collections.singletonMap("LIST", linkList), monitor, true),
+                        monitor, new File(tmpDir + "Sketch.elf"));
+          if (res.exitCode != 0 && coreIndex != null) {
+            // The index may be out of date, so discard it and link with the whole core (which saves a new index)
+            System.out.println("Link failed using core files selected by symbol index, compiling all core files");
+            symFile.delete();
+            coreIndex = null;
+            continue;
+          }
+          break;
         }
-        // Link all object files
-        tags.put("LIST", linkList.toString());
-        tags.put("OFILE", "Sketch.elf");
-        String cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + link, tags);
-        System.out.println("Run: " + cmd);
-        Process proc = Runtime.getRuntime().exec(cmd);
-        String ret = Utility.runCmd(proc);
-        int retVal = proc.waitFor();
-        if (retVal != 0) {
-          String msg = "While Linking\n" + ret;
+        if (res.exitCode != 0) {
+          String msg = "While Linking\n" + res.output;
           System.out.println(msg);
           tags.put("ERR", msg);
           return tags;
         }
-        // Generate Arduino-like sketch hex output, listing and code/data size info
-        for (String[] seq : build) {
-          cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + seq[1], tags);
-          System.out.println("Run: " + cmd);
-          proc = Runtime.getRuntime().exec(cmd);
-          ret = Utility.runCmd(proc);
-          retVal = proc.waitFor();
-          if (retVal != 0) {
-            String msg = "While Building\n" + ret;
-            System.out.println(msg);
-            tags.put("ERR", msg);
-            return tags;
-          }
-          out.put(seq[0], ret);
-        }
+      }
+      // Generate Arduino-like sketch hex output and code/data size info (the listing is generated on demand
+      // by getListing()) using the same output formats as "avr-objcopy -O ihex -R .eeprom" and "avr-size -A"
+      try (BuildTrace.Span span = monitor.getTrace().begin("HEX", "java")) {
+        elf = new ElfFile(new File(tmpDir + "Sketch.elf"));
+        hex = elf.toIntelHex(".eeprom");
+        out.put("SIZE", elf.getSizeReport(tmpDir + "Sketch.elf"));
+        span.setBytes(hex.length());
       }
     } catch (Exception ex) {
-      ex.printStackTrace();
+      if (!monitor.isCancelled()) {
+        ex.printStackTrace();
+      }
       tags.put("ERR", ex.getMessage());
       return tags;
     } finally {
@@ -443,56 +582,32 @@ class ATTinyCompiler {
         out.put(key, val);
       }
     }
-    String buf = Utility.getFile(tmpDir + "Sketch.hex");
     if ("TPI".equals(chipInfo.prog)) {
       // If attiny10 series, prefix with fuse settings
-      buf = ":020000020000FC\n" +  // Set origin at 0
-          "*" + Utility.hexChar(fuseBits) + "\n" + buf;
+      hex = ":020000020000FC\n" +  // Set origin at 0
+          "*" + Utility.hexChar(fuseBits) + "\n" + hex;
     }
-    out.put("HEX", buf);
+    out.put("HEX", hex);
     out.put("CHIP", chip);
+    // Record what getListing() and getIndex() need to generate the listing, or index later
+    out.put("ELF", tmpDir + "Sketch.elf");
+    out.put("ELFHASH", hashFile(new File(tmpDir + "Sketch.elf")));
+    out.put("TEXE", tmpExe);
+    out.put("INTLV", tags.get("INTLV"));
     // Check if any variables were exported
     if (exports.size() > 0) {
       try {
-        String listing = out.get("LST");
-        int idx = listing.indexOf("SYMBOL TABLE:\n");
-        int loadStart = 0, dataStart = 0;
-        if (idx >= 0) {
-          int end = listing.indexOf("\n\n", idx);
-          if (end >= 0 && end > idx) {
-            String symbols = listing.substring(idx + 14, end);
-            StringTokenizer tok = new StringTokenizer(symbols, "\n");
-            while (tok.hasMoreElements()) {
-              String line = Utility.condenseWhitespace(tok.nextToken());
-              String[] parts = line.split("\\s");
-              if (parts.length == 6) {
-                if ("O".equals(parts[2]) && exports.containsKey(parts[5])) {
-                  String tmp = parts[0];
-                  int add = Integer.parseInt(tmp.substring(tmp.length() - 4), 16);
-                  int size = Integer.parseInt(parts[4]);
-                  exports.put(parts[5], new Integer[]{add, size});
-                }
-              } else if (parts.length == 5) {
-                int add = Integer.parseInt(parts[0].toUpperCase().substring(parts[0].length() - 4), 16);
-                switch (parts[4]) {
-                  case "__data_load_start":
-                    loadStart = add;
-                    break;
-                  case "__data_start":
-                    dataStart = add;
-                    break;
-                }
-              }
-            }
-          }
-        }
+        ElfIndex index = new ElfIndex(elf);
+        ElfIndex.Symbol dataStart = index.getSymbol("__data_start");
+        ElfIndex.Symbol loadStart = index.getSymbol("__data_load_start");
         StringBuilder exVars = new StringBuilder();
-        for (String name : exports.keySet()) {
-          Integer[] parts = exports.get(name);
-          if (parts != null && parts.length == 2) {
-            int add = parts[0] - dataStart + loadStart;
-            int size = parts[1];
-            exVars.append(name).append(":").append(Integer.toHexString(add)).append(":").append(size).append("\n");
+        for (String name : exports) {
+          ElfIndex.Symbol sym = index.getSymbol(name);
+          if (sym != null && sym.type == ElfIndex.STT_OBJECT) {
+            // Convert address in RAM into address in flash where the value is loaded from
+            long add = (sym.value & 0xFFFF) - (dataStart != null ? dataStart.value & 0xFFFF : 0) +
+                       (loadStart != null ? loadStart.value & 0xFFFF : 0);
+            exVars.append(name).append(":").append(Long.toHexString(add)).append(":").append(sym.size).append("\n");
           } else {
             warnings.add("Data for #pragma xparm: " + name + " not found in .data section - " +
                 "declare with __attribute__ ((section (\".data\")))");
@@ -514,24 +629,665 @@ class ATTinyCompiler {
     return out;
   }
 
-  private static String getCompileCommand (String compFile, Map<String, String> tags) {
-    String tmpExe = tags.get("TEXE");
+  /**
+   * Get the disassembly listing for a build, running avr-objdump the first time the listing is needed
+   * @param result Map returned by compile() for a successful build
+   * @return listing (disassembly, optionally interleaved with source, and symbol table)
+   * @throws IllegalStateException if Sketch.elf has since been replaced by another build, or objdump fails
+   */
+  static String getListing (Map<String, String> result) throws Exception {
+    String key = result.get("ELFHASH") + result.get("INTLV");
+    synchronized (listings) {
+      String listing = listings.get(key);
+      if (listing != null) {
+        return listing;
+      }
+    }
+    checkElf(result);
+    ProcessRunner.Result res = runTool("LST", list, result, new BuildMonitor(), false, null);
+    if (res.exitCode != 0) {
+      throw new IllegalStateException("While Listing\n" + res.output);
+    }
+    synchronized (listings) {
+      listings.put(key, res.output);
+    }
+    return res.output;
+  }
+
+  /**
+   * Get the symbol and source line index for a build, building it the first time it's needed
+   * @param result Map returned by compile() for a successful build
+   * @return ElfIndex for the build's Sketch.elf
+   * @throws IllegalStateException if Sketch.elf has since been replaced by another build
+   */
+  static ElfIndex getIndex (Map<String, String> result) throws IOException {
+    synchronized (indexes) {
+      ElfIndex index = indexes.get(result.get("ELFHASH"));
+      if (index == null) {
+        index = new ElfIndex(new ElfFile(checkElf(result)));
+        indexes.put(result.get("ELFHASH"), index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @return build's Sketch.elf file
+   * @throws IllegalStateException if Sketch.elf has since been replaced by another build
+   */
+  private static File checkElf (Map<String, String> result) throws IOException {
+    File elf = new File(result.get("ELF"));
+    if (!elf.exists() || !result.get("ELFHASH").equals(hashFile(elf))) {
+      throw new IllegalStateException("Not available, as " + elf.getName() + " has been rebuilt");
+    }
+    return elf;
+  }
+
+  private static String hashFile (File file) throws IOException {
+    return ObjectCache.toHex(ObjectCache.getDigest().digest(Files.readAllBytes(file.toPath())));
+  }
+
+  /**
+   * Consumes preprocessor output and keeps only the lines from one source file (along with the first line
+   * marker) using a simple scanner to recognize line markers, such as: # 12 "/path/to/Sketch.cpp" 2
+   */
+  private static class SketchFilter implements Consumer<String> {
+    private final String        path;
+    private final StringBuilder buf;
+    private boolean             inSketch, markerFound;
+
+    /**
+     * @param path path to source file, as it appears in line markers
+     * @param buf receives the lines kept
+     */
+    SketchFilter (String path, StringBuilder buf) {
+      this.path = path;
+      this.buf = buf;
+    }
+
+    public void accept (String line) {
+      String file = getMarkerFile(line);
+      if (file != null) {
+        inSketch = file.equals(path);
+        if (!markerFound) {
+          buf.append(line).append("\n");
+          markerFound = true;
+        }
+      } else if (inSketch && line.length() > 0) {
+        buf.append(line).append("\n");
+      }
+    }
+
+    /**
+     * @return file name from a line marker (with escapes left in place), or null if line isn't a line marker
+     */
+    private static String getMarkerFile (String line) {
+      if (line.length() < 5 || line.charAt(0) != '#' || line.charAt(1) != ' ') {
+        return null;
+      }
+      int idx = 2;
+      while (idx < line.length() && Character.isDigit(line.charAt(idx))) {
+        idx++;
+      }
+      if (idx == 2 || idx + 1 >= line.length() || line.charAt(idx) != ' ' || line.charAt(idx + 1) != '"') {
+        return null;
+      }
+      int start = idx + 2;
+      for (idx = start; idx < line.length(); idx++) {
+        char cc = line.charAt(idx);
+        if (cc == '\\') {
+          idx++;                                      // Skip escaped character
+        } else if (cc == '"') {
+          return line.substring(start, idx);
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class CompileResult {
+    private final String  file;
+    private final int     exitCode;
+    private final String  output;
+    private final boolean cached;
+
+    CompileResult (String file, int exitCode, String output, boolean cached) {
+      this.file = file;
+      this.exitCode = exitCode;
+      this.output = output;
+      this.cached = cached;
+    }
+  }
+
+  /**
+   * Compile the sketch and every core and library file it depends upon, in parallel using one thread
+   * per processor core.  Files are confirmed as dependencies by scanning the .d file produced when the
+   * file which #includes them is compiled, but files matching headers the sketch #includes directly are
+   * also started speculatively alongside the sketch, so the core files don't wait for the sketch compile.
+   * A speculative compile that fails only fails the build if the .d scan later confirms it is needed.
+   * If coreIndex is given, core files found by the .d scans are not compiled as they're found.  Instead,
+   * once the other compiles are done, only the core files which define symbols they need are compiled,
+   * repeating until no more files are needed (such as a library file #included by a core file).
+   * @param mainFile name of main sketch file in tmpDir
+   * @param includes #include lines in sketch source code
+   * @param codeFiles Map of lowercase base name to name of .c or .cpp file in tmpDir
+   * @param coreFiles core files copied into tmpDir
+   * @param tags tags used to build compile commands
+   * @param cache ObjectCache used to reuse the results of earlier compiles (or null)
+   * @param prebuilt core files which are not compiled, as they will be linked from a prebuilt archive
+   * @param coreIndex SymbolIndex of the core files used to select the core files to compile (or null for all)
+   * @param compFiles List which receives, in link order, the names of the files compiled
+   * @param cached List which receives the names of the files whose objects were fetched from cache
+   * @param progress ProgressBar to update as files complete (or null)
+   * @param monitor BuildMonitor used to start compiles
+   * @return null if compiles were successful, else output from the first confirmed compile that failed
+   */
+  private static String compileAll (String mainFile, List<String> includes, Map<String,String> codeFiles,
+                                    File[] coreFiles, Map<String,String> tags, ObjectCache cache,
+                                    Set<String> prebuilt, SymbolIndex coreIndex, List<String> compFiles,
+                                    List<String> cached, ATTinyC.ProgressBar progress, BuildMonitor monitor)
+      throws Exception {
+    String tmpDir = tags.get("TDIR");
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "Compile");
+      thread.setDaemon(true);
+      return thread;
+    });
+    CompletionService<CompileResult> service = new ExecutorCompletionService<>(pool);
+    // Compiles run under a child monitor, so they can be stopped without cancelling the whole build
+    BuildMonitor compiles = new BuildMonitor(monitor);
+    Map<String,Future<CompileResult>> submitted = new HashMap<>();
+    Map<String,CompileResult> done = new HashMap<>();
+    Set<String> confirmed = new LinkedHashSet<>();
+    Deque<String> ready = new ArrayDeque<>();
+    Set<String> deferred = coreIndex != null ? coreIndex.getFiles() : Collections.emptySet();
+    Set<String> scanned = new HashSet<>(), needed = new LinkedHashSet<>(), provided = new HashSet<>();
+    boolean coreWanted = false;
+    try {
+      confirmed.add(mainFile);
+      submitted.put(mainFile, submitCompile(service, mainFile, tags, cache, compiles));
+      for (String file : getIncludedFiles(includes, mainFile, codeFiles, coreFiles)) {
+        if (!submitted.containsKey(file) && !prebuilt.contains(file) && !deferred.contains(file)) {
+          submitted.put(file, submitCompile(service, file, tags, cache, compiles));
+        }
+      }
+      int pending = submitted.size();
+      while (true) {
+        while (!ready.isEmpty()) {
+          CompileResult res = done.get(ready.removeFirst());
+          if (res.exitCode != 0) {
+            return res.output;
+          }
+          // Scan .d file for include files that need to also be compiled
+          List<String> lines = Arrays.asList(Utility.getFile(tmpDir + res.file + ".d").split("\n"));
+          for (String file : getIncludedFiles(lines, mainFile, codeFiles, coreFiles)) {
+            if (deferred.contains(file) && !confirmed.contains(file)) {
+              coreWanted = true;
+              continue;
+            }
+            if (confirmed.add(file) && !prebuilt.contains(file)) {
+              if (!submitted.containsKey(file)) {
+                submitted.put(file, submitCompile(service, file, tags, cache, compiles));
+                pending++;
+              } else if (done.containsKey(file)) {
+                ready.add(file);
+              }
+            }
+          }
+        }
+        if (progress != null) {
+          int count = 0;
+          for (String file : confirmed) {
+            count += done.containsKey(file) || prebuilt.contains(file) ? 1 : 0;
+          }
+          progress.setMaximum(confirmed.size());
+          progress.setValue(count);
+        }
+        if (pending == 0 && coreWanted) {
+          // Read the symbols of the files compiled since the last pass and compile the core files that define the
+          // symbols they need (starting with main(), which is referenced by the startup code)
+          List<String> objs = new ArrayList<>();
+          for (String file : confirmed) {
+            if (!deferred.contains(file) && scanned.add(file)) {
+              objs.add(file);
+            }
+          }
+          Set<String> select = deferred;
+          if (!objs.isEmpty()) {
+            SymbolIndex index = readSymbols(objs, tags, monitor);
+            if (index != null) {
+              for (String file : objs) {
+                needed.addAll(index.getUndefined(file));
+                provided.addAll(index.getDefined(file));
+              }
+              needed.add("main");
+              select = coreIndex.select(needed, provided);
+            }
+          } else {
+            select = coreIndex.select(needed, provided);
+          }
+          for (String file : select) {
+            if (confirmed.add(file)) {
+              submitted.put(file, submitCompile(service, file, tags, cache, compiles));
+              pending++;
+            }
+          }
+        }
+        if (pending == 0) {
+          break;
+        }
+        CompileResult res;
+        try {
+          res = service.take().get();
+        } catch (ExecutionException ex) {
+          monitor.checkCancelled();
+          throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+        monitor.checkCancelled();
+        pending--;
+        done.put(res.file, res);
+        if (confirmed.contains(res.file)) {
+          ready.add(res.file);
+        }
+      }
+    } finally {
+      // Cancel compiles still running (only speculative compiles, unless a confirmed compile failed)
+      for (Future<CompileResult> future : submitted.values()) {
+        future.cancel(true);
+      }
+      compiles.cancel();
+      pool.shutdownNow();
+      // Wait for workers to stop, so none can write into tmpDir after the build returns
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    // Replay the .d scans in sequence so the link order doesn't depend on which compile finished first
+    compFiles.add(mainFile);
+    for (int ii = 0; ii < compFiles.size(); ii++) {
+      if (prebuilt.contains(compFiles.get(ii))) {
+        continue;
+      }
+      if (done.get(compFiles.get(ii)).cached) {
+        cached.add(compFiles.get(ii));
+      }
+      List<String> lines = Arrays.asList(Utility.getFile(tmpDir + compFiles.get(ii) + ".d").split("\n"));
+      for (String file : getIncludedFiles(lines, mainFile, codeFiles, coreFiles)) {
+        if (!compFiles.contains(file) && (!deferred.contains(file) || confirmed.contains(file))) {
+          compFiles.add(file);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Future<CompileResult> submitCompile (CompletionService<CompileResult> service, String compFile,
+                                                      Map<String,String> tags, ObjectCache cache,
+                                                      BuildMonitor monitor) {
+    String template = getCompileTemplate(compFile);
+    Map<String,String> fileTags = new HashMap<>(tags);
+    fileTags.put("IFILE", compFile);
+    String exeDir = tags.get("TEXE") + "bin" + fileSep;
+    String cmd = Utility.replaceTags(exeDir + template, fileTags);
+    String tmpDir = tags.get("TDIR");
+    Map<String,String> keyTags = new HashMap<>(tags);
+    return service.submit(() -> {
+      try (BuildTrace.Span span = monitor.getTrace().begin(compFile, "compile")) {
+        String key = null;
+        if (cache != null) {
+          key = ObjectCache.getKey(cmd, tmpDir, new File(tmpDir + compFile), keyTags);
+          if (cache.fetch(key, tmpDir, compFile)) {
+            System.out.println("Cached: " + compFile);
+            span.setCategory("cached");
+            span.setBytes(new File(tmpDir + compFile + ".o").length());
+            return new CompileResult(compFile, 0, "", true);
+          }
+        }
+        System.out.println("Run: " + cmd);
+        ProcessRunner.Result res = new ProcessRunner(exeDir, template, fileTags).setMonitor(monitor)
+            .setListener(monitor.getOutputListener()).setTimeout(TOOL_TIMEOUT).run();
+        span.setCpu(res.cpuNanos);
+        if (res.exitCode == 0) {
+          span.setBytes(new File(tmpDir + compFile + ".o").length());
+          if (cache != null) {
+            cache.store(key, tmpDir, compFile);
+          }
+        }
+        return new CompileResult(compFile, res.exitCode, res.output, false);
+      }
+    });
+  }
+
+  /**
+   * Get the names of the .c and .cpp files in the core (and core variant)
+   * @param coreFiles core files copied into tmpDir
+   * @param mainFile name of main sketch file (excluded)
+   * @return Set of core source file names
+   */
+  private static Set<String> getCoreSources (File[] coreFiles, String mainFile) {
+    Set<String> sources = new TreeSet<>();
+    if (coreFiles != null) {
+      for (File file : coreFiles) {
+        String fName = file.getName();
+        String[] parts = fName.toLowerCase().split("\\.");
+        if (!fName.equals(mainFile) && parts.length == 2 && ("cpp".equals(parts[1]) || "c".equals(parts[1]))) {
+          sources.add(fName);
+        }
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * Compute a key which identifies one build of the core from the content of the core files, the compile
+   * command templates and the CHIP, CLOCK, DEFINES, PROFILE and toolchain tags
+   * @param coreFiles core files copied into tmpDir
+   * @param mainFile name of main sketch file (excluded)
+   * @param tags compile tags
+   * @param clock if false, the CLOCK tag is left out of the key
+   * @return hex String key
+   */
+  private static String getCoreKey (File[] coreFiles, String mainFile, Map<String,String> tags, boolean clock)
+      throws IOException {
+    MessageDigest md = ObjectCache.getDigest();
+    for (String item : new String[] {compC, compCpp, compAsm, tags.get("CHIP"), clock ? tags.get("CLOCK") : "",
+                                     tags.get("DEFINES"), tags.get("TOOLCRC"), tags.get("PROFILE")}) {
+      md.update((item + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    List<File> files = new ArrayList<>(Arrays.asList(coreFiles));
+    files.sort(Comparator.comparing(File::getName));
+    for (File file : files) {
+      if (file.isFile() && !file.getName().equals(mainFile)) {
+        md.update((file.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+        md.update(Files.readAllBytes(file.toPath()));
+      }
+    }
+    return ObjectCache.toHex(md.digest()).substring(0, 16);
+  }
+
+  /**
+   * Collect the compiled core objects into a static archive that later builds can link against
+   * @param coreDir directory where archives are saved
+   * @param coreLib name of library (archive file is named "lib" + coreLib + ".a")
+   * @param coreSources core source files which have been compiled into tmpDir
+   * @param tags compile tags
+   * @param monitor BuildMonitor used to run archiver
+   * @return true if archive was built
+   */
+  private static boolean buildCoreArchive (String coreDir, String coreLib, Set<String> coreSources,
+                                           Map<String,String> tags, BuildMonitor monitor) {
+    String tmpDir = tags.get("TDIR");
+    try {
+      File dir = new File(coreDir);
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new IllegalStateException("Unable to create directory: " + dir);
+      }
+      List<String> objs = new ArrayList<>();
+      for (String file : coreSources) {
+        objs.add(tmpDir + file + ".o");
+      }
+      // Build under a temporary name, so concurrent builds never see a partial archive
+      File tmp = new File(coreDir + "lib" + coreLib + "." + Thread.currentThread().getId() + ".tmp");
+      tmp.delete();
+      Map<String,String> arTags = new HashMap<>(tags);
+      arTags.put("ARCHIVE", tmp.getAbsolutePath());
+      ProcessRunner.Result res = runTool("ARCHIVE", getRunner(archive, arTags, Collections.singletonMap("OBJS", objs),
+                                                              monitor, true), monitor, tmp);
+      if (res.exitCode != 0) {
+        System.out.println("Unable to build core archive, linking core objects instead\n" + res.output);
+        tmp.delete();
+        return false;
+      }
+      Files.move(tmp.toPath(), new File(coreDir + "lib" + coreLib + ".a").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      pruneFiles(dir, ".a");
+      return true;
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Copy the precompiled Arduino.h saved for a core configuration into tmpDir as Arduino.h.gch, where the
+   * compiler looks for it before reading Arduino.h, compiling and saving it first, if needed.  A compile
+   * only uses it if its options match the ones used to build it, so C files, which can't use a C++
+   * precompiled header, read Arduino.h, as before.
+   * @param gchFile file where precompiled header is saved (named using the key for the core configuration)
+   * @param tags compile tags
+   * @param monitor BuildMonitor used to run compiler
+   */
+  private static void installHeader (File gchFile, Map<String,String> tags, BuildMonitor monitor) {
+    String tmpDir = tags.get("TDIR");
+    File dest = new File(tmpDir + "Arduino.h.gch");
+    try {
+      if (!gchFile.exists()) {
+        // Remove header built for another configuration, so it's not used while compiling the new one
+        dest.delete();
+        Map<String,String> hdrTags = new HashMap<>(tags);
+        hdrTags.put("IFILE", "Arduino.h");
+        File obj = new File(tmpDir + "Arduino.h.o");
+        ProcessRunner.Result res = runTool("PCH", compCpp, hdrTags, monitor, false, obj);
+        if (res.exitCode != 0) {
+          System.out.println("Unable to precompile Arduino.h\n" + res.output);
+          obj.delete();
+          return;
+        }
+        // Save under a temporary name, so concurrent builds never see a partial header
+        File dir = gchFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+          throw new IllegalStateException("Unable to create directory: " + dir);
+        }
+        File tmp = new File(gchFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        Files.move(obj.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp.toPath(), gchFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        pruneFiles(dir, ".gch");
+      }
+      gchFile.setLastModified(System.currentTimeMillis());
+      Files.copy(gchFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (BuildMonitor.CancellationException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      dest.delete();
+    }
+  }
+
+  /**
+   * Save the symbols defined and referenced by each core file, so later builds can compile only the core
+   * files they need (see compileAll())
+   * @param symFile file to save index in
+   * @param coreSources core source files which have been compiled into tmpDir
+   * @param tags compile tags
+   * @param monitor BuildMonitor used to run avr-gcc-nm
+   */
+  private static void buildSymbolIndex (File symFile, Set<String> coreSources, Map<String,String> tags,
+                                        BuildMonitor monitor) {
+    try {
+      SymbolIndex index = readSymbols(new ArrayList<>(coreSources), tags, monitor);
+      if (index != null) {
+        // Save under a temporary name, so concurrent builds never see a partial index
+        File tmp = new File(symFile.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        Utility.saveFile(tmp.getPath(), index.getText());
+        Files.move(tmp.toPath(), symFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        pruneFiles(symFile.getParentFile(), ".nm");
+      }
+    } catch (BuildMonitor.CancellationException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Run avr-gcc-nm to list the symbols defined and referenced by compiled files
+   * @param files names of source files which have been compiled into tmpDir
+   * @param tags compile tags
+   * @param monitor BuildMonitor used to run avr-gcc-nm
+   * @return SymbolIndex, or null if avr-gcc-nm failed
+   */
+  private static SymbolIndex readSymbols (List<String> files, Map<String,String> tags, BuildMonitor monitor)
+      throws Exception {
+    List<String> objs = new ArrayList<>();
+    for (String file : files) {
+      objs.add(tags.get("TDIR") + file + ".o");
+    }
+    ProcessRunner.Result res = runTool("SYMBOLS", getRunner(nameList, tags, Collections.singletonMap("OBJS", objs),
+                                                            monitor, false), monitor, null);
+    if (res.exitCode != 0) {
+      System.out.println("Unable to list symbols, compiling all core files\n" + res.output);
+      return null;
+    }
+    return new SymbolIndex(res.output, files.size() == 1 ? files.get(0) : null);
+  }
+
+  /**
+   * Keep only the 8 most recently used files with a suffix (such as core archives)
+   * @param dir directory containing files
+   * @param suffix file name suffix, such as ".a"
+   */
+  private static void pruneFiles (File dir, String suffix) {
+    File[] list = dir.listFiles((file, name) -> name.endsWith(suffix));
+    if (list != null && list.length > 8) {
+      Arrays.sort(list, Comparator.comparing(File::lastModified).reversed());
+      for (int ii = 8; ii < list.length; ii++) {
+        list[ii].delete();
+      }
+    }
+  }
+
+  /**
+   * Scan lines from a source file, or a .d dependency file, for headers with a matching code file
+   * @param lines lines to scan
+   * @param mainFile name of main sketch file (ignored if found in lines)
+   * @param codeFiles Map of lowercase base name to name of .c or .cpp file in tmpDir
+   * @param coreFiles core files copied into tmpDir (all are needed if Arduino.h is included)
+   * @return List of code files that need to be compiled
+   */
+  private static List<String> getIncludedFiles (List<String> lines, String mainFile, Map<String,String> codeFiles,
+                                                File[] coreFiles) {
+    List<String> files = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    for (String line : lines) {
+      line = line.trim();
+      if (line.startsWith("#include")) {
+        names.add(line.substring(8).replaceAll("[\"<>]", " ").trim());
+        continue;
+      }
+      if (line.endsWith("\\")) {
+        line = line.substring(0, line.length() - 1).trim();
+      }
+      int idx = line.indexOf(": ");
+      if (idx >= 0) {
+        line = line.substring(idx + 2);                 // Remove "target:" from first line of .d file
+      }
+      names.addAll(Arrays.asList(line.split("(?<!\\\\)\\s+")));     // Split on spaces not escaped by '\'
+    }
+    for (String name : names) {
+      if (name.contains(mainFile)) {
+        continue;
+      }
+      // Reduce dependency or #include path to the header's file name
+      name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf(fileSep.charAt(0))) + 1);
+      String[] parts = name.split("\\.");
+      if (parts.length == 2 && "h".equals(parts[1])) {
+        String codeFile = codeFiles.get(parts[0].toLowerCase());
+        if (codeFile != null) {
+          // Add in code file matching #included header
+          if (!files.contains(codeFile)) {
+            files.add(codeFile);
+          }
+        } else if ("arduino".equals(parts[0].toLowerCase())) {
+          // Add all core files into the list of source files to compile (can we improve this?)
+          if (coreFiles != null) {
+            for (File file : coreFiles) {
+              String fName = file.getName();
+              String[] cParts = fName.toLowerCase().split("\\.");
+              if (cParts.length == 2 && ("cpp".equals(cParts[1]) || "c".equals(cParts[1]))) {
+                if (!files.contains(fName)) {
+                  files.add(fName);
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    return files;
+  }
+
+  private static String getCompileTemplate (String compFile) {
     String suffix = compFile.substring(compFile.indexOf("."));
-    tags.put("IFILE", compFile);
-    String cmd;
     switch (suffix.toLowerCase()) {
       case ".c":
-        cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + compC, tags);
-        break;
+        return compC;
       case ".cpp":
-        cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + compCpp, tags);
-        break;
+        return compCpp;
       case ".s":
-        cmd = Utility.replaceTags(tmpExe + "bin" + fileSep + compAsm, tags);
-        break;
+        return compAsm;
       default:
         throw new IllegalStateException("Unknown file type: " + suffix);
     }
-    return cmd;
+  }
+
+  /**
+   * Run one of the toolchain command templates and record its timing in the build's trace
+   * @param step name of build step (used in the trace)
+   * @param template command template
+   * @param tags tags used to expand template (TEXE gives the toolchain directory)
+   * @param monitor BuildMonitor for the build
+   * @param live if true, output is also passed, line by line, to the monitor's output listener
+   * @param product file written by the step (its size is recorded), or null to record the size of the output
+   * @return ProcessRunner.Result
+   */
+  private static ProcessRunner.Result runTool (String step, String template, Map<String,String> tags,
+                                               BuildMonitor monitor, boolean live, File product) throws Exception {
+    return runTool(step, getRunner(template, tags, monitor, live), monitor, product);
+  }
+
+  /**
+   * Create a ProcessRunner for one of the toolchain command templates
+   * @param template command template
+   * @param tags tags used to expand template (TEXE gives the toolchain directory)
+   * @param monitor BuildMonitor for the build
+   * @param live if true, output is also passed, line by line, to the monitor's output listener
+   * @return ProcessRunner
+   */
+  private static ProcessRunner getRunner (String template, Map<String,String> tags, BuildMonitor monitor, boolean live) {
+    return getRunner(template, tags, Collections.emptyMap(), monitor, live);
+  }
+
+  /**
+   * Create a ProcessRunner for one of the toolchain command templates which uses list tags, such as *[OBJS]*
+   * @param template command template
+   * @param tags tags used to expand template (TEXE gives the toolchain directory)
+   * @param lists values for the list tags used in template (each value, such as a path, is one argument)
+   * @param monitor BuildMonitor for the build
+   * @param live if true, output is also passed, line by line, to the monitor's output listener
+   * @return ProcessRunner
+   */
+  private static ProcessRunner getRunner (String template, Map<String,String> tags, Map<String,List<String>> lists,
+                                          BuildMonitor monitor, boolean live) {
+    return new ProcessRunner(tags.get("TEXE") + "bin" + fileSep, template, tags, lists)
+        .setMonitor(monitor)
+        .setTimeout(TOOL_TIMEOUT)
+        .setListener(live ? monitor.getOutputListener() : null);
+  }
+
+  /**
+   * Run a ProcessRunner and record its timing in the build's trace
+   * @param step name of build step (used in the trace)
+   * @param runner ProcessRunner created by getRunner()
+   * @param monitor BuildMonitor for the build
+   * @param product file written by the step (its size is recorded), or null to record the size of the output
+   * @return ProcessRunner.Result
+   */
+  private static ProcessRunner.Result runTool (String step, ProcessRunner runner, BuildMonitor monitor,
+                                               File product) throws Exception {
+    System.out.println("Run: " + runner.getCommand());
+    try (BuildTrace.Span span = monitor.getTrace().begin(step, "tool")) {
+      ProcessRunner.Result res = runner.run();
+      span.setCpu(res.cpuNanos);
+      span.setBytes(product != null ? product.length() : res.output.length());
+      return res;
+    }
   }
 }
@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  Microbenchmarks for the shared parsing and text helpers used on every build and every assembly,
+ *  (ExpressionParser, Utility and ATTinyC.parseIntelHex()), driven by inputs taken from the files
+ *  in examples/ and from resources on the classpath (attiny10.props, clockcal.hex and the markdown
+ *  documentation).  Each benchmark is run for a warmup period, then for a number of timed rounds
+ *  and the result reports throughput (ops/s) along with the allocation rate (bytes/op and MB/s),
+ *  as measured by com.sun.management.ThreadMXBean, where the JVM supports it.
+ *
+ *  Usage: java Benchmarks [-examples dir] [-warmup ms] [-time ms] [-rounds n] [name filter...]
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class Benchmarks {
+  private static final String             fileSep = System.getProperty("file.separator");
+  private static volatile int             sink;
+  private final Map<String,Bench>         benches = new LinkedHashMap<>();
+  private final com.sun.management.ThreadMXBean allocBean;
+  private long                            warmupMs = 1000;
+  private long                            timeMs = 1000;
+  private int                             rounds = 5;
+
+  interface Bench {
+    /**
+     * Run one operation
+     * @return result of the operation (consumed by the harness so it can't be optimized away)
+     */
+    Object run ();
+  }
+
+  static class Result {
+    final String  name;
+    final double  opsPerSec, minOps, maxOps;
+    final double  bytesPerOp;
+
+    Result (String name, double opsPerSec, double minOps, double maxOps, double bytesPerOp) {
+      this.name = name;
+      this.opsPerSec = opsPerSec;
+      this.minOps = minOps;
+      this.maxOps = maxOps;
+      this.bytesPerOp = bytesPerOp;
+    }
+  }
+
+  Benchmarks () {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (sunBean.isThreadAllocatedMemorySupported()) {
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        allocBean = sunBean;
+        return;
+      }
+    }
+    allocBean = null;
+  }
+
+  /**
+   * Build the benchmark set using input files in the examples directory
+   * @param examples path to examples directory
+   */
+  void setup (String examples) throws Exception {
+    List<String> asmLines = new ArrayList<>();
+    List<String> cLines = new ArrayList<>();
+    List<String> cFiles = new ArrayList<>();
+    File[] files = new File(examples).listFiles();
+    if (files == null) {
+      throw new IllegalStateException("Benchmarks.setup() directory '" + examples + "' not found");
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName().toLowerCase();
+      String text = Utility.getFile(file);
+      if (name.endsWith(".asm") || name.endsWith(".s")) {
+        for (String line : text.split("\n")) {
+          int idx = line.indexOf(';');
+          line = (idx >= 0 ? line.substring(0, idx) : line).trim();
+          if (line.length() > 0) {
+            asmLines.add(line);
+          }
+        }
+      } else if (name.endsWith(".c") || name.endsWith(".cpp") || name.endsWith(".ino")) {
+        cFiles.add(text);
+        cLines.addAll(Arrays.asList(text.split("\n")));
+      }
+    }
+    // Collect expressions from instruction operands and equates
+    Set<String> exprSet = new LinkedHashSet<>();
+    for (String line : asmLines) {
+      String[] parts = Utility.parse(line);
+      for (int ii = 1; ii < parts.length; ii++) {
+        if (parts[ii].matches(".*[-+*/<>()&|~].*") && !parts[ii].contains("\"")) {
+          exprSet.add(parts[ii]);
+        }
+      }
+    }
+    // Bind variables to the chip's register values, or to a dummy label address
+    Properties props = Utility.getResourceMap("attiny10.props");
+    Map<String,Object> vals = new HashMap<>();
+    List<String> exprs = new ArrayList<>();
+    List<ExpressionParser.Token[]> parsed = new ArrayList<>();
+    for (String expr : exprSet) {
+      try {
+        ExpressionParser.Token[] tokens = ExpressionParser.parse(expr, null);
+        for (String var : ExpressionParser.getVariables(tokens)) {
+          String prop = props.getProperty(var.toUpperCase());
+          vals.computeIfAbsent(var, k -> BigInteger.valueOf(prop != null ? Long.decode(prop) : 0x40 + vals.size() * 2));
+        }
+        ExpressionParser.eval(tokens, vals);
+        exprs.add(expr);
+        parsed.add(tokens);
+      } catch (Exception ex) {
+        // Skip operands the expression parser doesn't handle, such as "Z+", or "." (current address)
+      }
+    }
+    if (exprs.isEmpty()) {
+      throw new IllegalStateException("Benchmarks.setup() no expressions found in '" + examples + "'");
+    }
+    List<ExpressionParser.Expression> compiled = new ArrayList<>();
+    for (String expr : exprs) {
+      compiled.add(ExpressionParser.compile(expr, null));
+    }
+    // Build tag map for one of the compile command templates
+    Map<String,String> tags = new HashMap<>();
+    tags.put("TDIR", System.getProperty("java.io.tmpdir") + fileSep + "attiny10" + fileSep);
+    tags.put("IFILE", "wiring_digital.c");
+    tags.put("CHIP", "attiny85");
+    tags.put("CLOCK", "8000000");
+    tags.put("DEFINES", "-DSKETCH_DEFINE=1");
+    tags.put("OPTIMIZE", ATTinyCompiler.profiles.get("release")[0]);
+    tags.put("LTO", ATTinyCompiler.profiles.get("release")[1]);
+    String template = ATTinyCompiler.compCpp;
+    // Embed the markdown documentation in an example sketch, as the IDE does on save
+    String markdown = Utility.getFile("res:documentation/index.md");
+    String embedded = embedMarkdown(cFiles.isEmpty() ? "" : cFiles.get(0), markdown);
+    String[] decoded = Utility.decodeMarkdown(embedded);
+    if (decoded.length != 2 || !decoded[1].trim().equals(markdown.trim())) {
+      throw new IllegalStateException("Benchmarks.setup() embedded markdown did not decode correctly");
+    }
+    String hex = Utility.getFile("res:clockcal.hex");
+    String[] asm = asmLines.toArray(new String[0]);
+    String[] src = cLines.toArray(new String[0]);
+    int[] idx = new int[1];
+    add("ExpressionParser.parse", () -> ExpressionParser.parse(exprs.get(next(idx, exprs.size())), null));
+    add("ExpressionParser.eval", () -> ExpressionParser.eval(parsed.get(next(idx, parsed.size())), vals));
+    add("Expression.eval (compiled)", () -> compiled.get(next(idx, compiled.size())).eval(vals));
+    add("Utility.parse", () -> Utility.parse(asm[next(idx, asm.length)]));
+    add("Utility.condenseWhitespace", () -> Utility.condenseWhitespace(src[next(idx, src.length)]));
+    add("Utility.replaceTags", () -> Utility.replaceTags(template, tags));
+    add("Utility.decodeMarkdown", () -> Utility.decodeMarkdown(embedded));
+    add("ATTinyC.parseIntelHex", () -> ATTinyC.parseIntelHex(hex));
+  }
+
+  private static int next (int[] idx, int size) {
+    int ii = idx[0] + 1;
+    return idx[0] = ii < size ? ii : 0;
+  }
+
+  /**
+   * Encode markdown text in the same way as the embedded markdown data decoded by Utility.decodeMarkdown()
+   */
+  static String embedMarkdown (String src, String markdown) throws Exception {
+    StringBuilder enc = new StringBuilder(URLEncoder.encode(markdown, "utf8"));
+    while (enc.length() % 96 != 0) {
+      enc.append('+');                    // Pad with encoded spaces so every line holds 128 Base64 chars
+    }
+    String data = Base64.getEncoder().encodeToString(enc.toString().getBytes(StandardCharsets.UTF_8));
+    StringBuilder buf = new StringBuilder(src);
+    buf.append("\n//:Begin Embedded Markdown Data (do not edit)\n");
+    for (int ii = 0; ii < data.length(); ii += 128) {
+      buf.append("//:").append(data, ii, ii + 128).append('\n');
+    }
+    buf.append("//:End Embedded Markdown Data");
+    return buf.toString();
+  }
+
+  void add (String name, Bench bench) {
+    benches.put(name, bench);
+  }
+
+  /**
+   * Run one benchmark
+   * @param name benchmark name
+   * @param bench operation to run
+   * @return Result for the timed rounds
+   */
+  Result measure (String name, Bench bench) {
+    runFor(bench, warmupMs);
+    double total = 0, min = Double.MAX_VALUE, max = 0;
+    long totalOps = 0, totalBytes = 0;
+    for (int ii = 0; ii < rounds; ii++) {
+      long bytes = allocated();
+      long start = System.nanoTime();
+      long ops = runFor(bench, timeMs);
+      long elapsed = System.nanoTime() - start;
+      totalBytes += allocated() - bytes;
+      totalOps += ops;
+      double rate = ops * 1e9 / elapsed;
+      total += rate;
+      min = Math.min(min, rate);
+      max = Math.max(max, rate);
+    }
+    double bytesPerOp = allocBean != null ? (double) totalBytes / totalOps : Double.NaN;
+    return new Result(name, total / rounds, min, max, bytesPerOp);
+  }
+
+  /**
+   * Repeatedly run bench, in batches, until at least time milliseconds have elapsed
+   * @return number of operations run
+   */
+  private static long runFor (Bench bench, long time) {
+    long end = System.nanoTime() + time * 1000000L;
+    long ops = 0;
+    int batch = 1, hash = 0;
+    do {
+      for (int ii = 0; ii < batch; ii++) {
+        hash += System.identityHashCode(bench.run());
+      }
+      ops += batch;
+      if (batch < 1024) {
+        batch <<= 1;
+      }
+    } while (System.nanoTime() < end);
+    sink += hash;
+    return ops;
+  }
+
+  private long allocated () {
+    return allocBean != null ? allocBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+  }
+
+  /**
+   * Run all benchmarks whose name contains one of the filter strings (or all, if filters is empty)
+   * @param filters List of name filters
+   * @param out PrintStream for results
+   * @return List of Result objects
+   */
+  List<Result> runAll (List<String> filters, PrintStream out) {
+    List<Result> results = new ArrayList<>();
+    out.printf("%-28s %14s %22s %12s %10s%n", "Benchmark", "ops/s", "(min - max)", "bytes/op", "MB/s");
+    for (Map.Entry<String,Bench> entry : benches.entrySet()) {
+      String name = entry.getKey();
+      boolean match = filters.isEmpty();
+      for (String filter : filters) {
+        match |= name.toLowerCase().contains(filter.toLowerCase());
+      }
+      if (match) {
+        Result res = measure(name, entry.getValue());
+        double mbs = res.bytesPerOp * res.opsPerSec / (1024 * 1024);
+        out.printf("%-28s %14.0f %22s %12.1f %10.1f%n", name, res.opsPerSec,
+                   String.format("(%.0f - %.0f)", res.minOps, res.maxOps), res.bytesPerOp, mbs);
+        results.add(res);
+      }
+    }
+    if (allocBean == null) {
+      out.println("Note: allocation measurement not supported by this JVM");
+    }
+    return results;
+  }
+
+  public static void main (String[] args) throws Exception {
+    Benchmarks bench = new Benchmarks();
+    String examples = "examples";
+    List<String> filters = new ArrayList<>();
+    for (int ii = 0; ii < args.length; ii++) {
+      switch (args[ii]) {
+        case "-examples": examples = args[++ii];                  break;
+        case "-warmup":   bench.warmupMs = Long.parseLong(args[++ii]); break;
+        case "-time":     bench.timeMs = Long.parseLong(args[++ii]);   break;
+        case "-rounds":   bench.rounds = Integer.parseInt(args[++ii]); break;
+        default:          filters.add(args[ii]);                  break;
+      }
+    }
+    bench.setup(examples);
+    bench.runAll(filters, System.out);
+  }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ *  Tracks the child processes started by one build so the build can be cancelled.  Cancelling destroys
+ *  every process the build has running, along with any processes they started (such as cc1plus, or the
+ *  lto-wrapper and ld processes started by a link) and causes any later attempt to start a process to
+ *  fail with a CancellationException.  A child BuildMonitor can be cancelled on its own (such as to stop
+ *  speculative compiles once one compile has failed), but is also cancelled when its parent is.
+ *
+ *  Note: destroying descendant processes requires Java 9, or later (ProcessHandle), so it is accessed
+ *  via reflection.  On Java 8 only the direct child process is destroyed.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class BuildMonitor {
+  private final Set<Process>          running = ConcurrentHashMap.newKeySet();
+  private final BuildMonitor          parent;
+  private volatile boolean            cancelled;
+  private volatile Consumer<String>   listener;
+  private final BuildTrace            trace;
+
+  static class CancellationException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    CancellationException () {
+      super("Build cancelled");
+    }
+  }
+
+  BuildMonitor () {
+    this(null);
+  }
+
+  /**
+   * @param parent BuildMonitor which also tracks, and can cancel this monitor's processes (or null)
+   */
+  BuildMonitor (BuildMonitor parent) {
+    this.parent = parent;
+    trace = parent != null ? parent.trace : new BuildTrace();
+  }
+
+  /**
+   * @return BuildTrace which records the timing of each build step (shared with the parent monitor)
+   */
+  BuildTrace getTrace () {
+    return trace;
+  }
+
+  /**
+   * @param listener receives lines of output from compile, link and archive commands as they run (or null)
+   */
+  void setOutputListener (Consumer<String> listener) {
+    this.listener = listener;
+  }
+
+  Consumer<String> getOutputListener () {
+    return listener != null || parent == null ? listener : parent.getOutputListener();
+  }
+
+  /**
+   * Start a process and track it until it exits, or the build is cancelled
+   * @param builder ProcessBuilder configured for the process
+   * @return Process
+   * @throws CancellationException if the build has been cancelled
+   */
+  Process start (ProcessBuilder builder) throws IOException {
+    checkCancelled();
+    Process proc = builder.start();
+    for (BuildMonitor monitor = this; monitor != null; monitor = monitor.parent) {
+      monitor.running.removeIf(item -> !item.isAlive());
+      monitor.running.add(proc);
+    }
+    if (isCancelled()) {
+      // Cancelled while starting, so make sure this process doesn't outlive the build
+      destroy(proc);
+      throw new CancellationException();
+    }
+    return proc;
+  }
+
+  /**
+   * Cancel the build and destroy all of its running processes
+   */
+  void cancel () {
+    cancelled = true;
+    for (Process proc : running) {
+      destroy(proc);
+    }
+    running.clear();
+  }
+
+  boolean isCancelled () {
+    return cancelled || (parent != null && parent.isCancelled());
+  }
+
+  /**
+   * @throws CancellationException if the build has been cancelled
+   */
+  void checkCancelled () {
+    if (isCancelled()) {
+      throw new CancellationException();
+    }
+  }
+
+  /**
+   * Forcibly destroy a process and all of its descendant processes
+   * @param proc Process to destroy
+   */
+  static void destroy (Process proc) {
+    List<?> handles = Collections.emptyList();
+    try {
+      // Collect descendants first, as they are reparented once proc is gone
+      Method descendants = Process.class.getMethod("descendants");
+      handles = ((Stream<?>) descendants.invoke(proc)).collect(Collectors.toList());
+    } catch (NoSuchMethodException ex) {
+      // Java 8, so only proc itself can be destroyed
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+    proc.destroyForcibly();
+    if (!handles.isEmpty()) {
+      try {
+        Method destroy = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+        for (Object handle : handles) {
+          destroy.invoke(handle);
+        }
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,160 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Records the time taken by each step of a build (resource sync, preprocess, each compile, link,
+ *  objcopy, objdump, size, etc) along with, where available, the CPU time used by the step's child
+ *  processes and the number of bytes the step produced.  The result can be shown as a text summary,
+ *  or exported in the Chrome trace event format, which can be loaded into chrome://tracing, or
+ *  https://ui.perfetto.dev to see a timeline of the build (one row per build thread).
+ *
+ *  Usage:
+ *    try (BuildTrace.Span span = trace.begin("LINK", "tool")) {
+ *      ...
+ *      span.setBytes(elfFile.length());
+ *    }
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class BuildTrace {
+  private final long                  origin = System.nanoTime();
+  private final List<Event>           events = Collections.synchronizedList(new ArrayList<>());
+  private final Map<Long,String>      threads = new ConcurrentHashMap<>();
+
+  static class Event {
+    final String  name, category;
+    final long    threadId, start, duration;          // Times in nanoseconds from start of trace
+    final long    cpu, bytes;                         // -1 if not known
+
+    Event (String name, String category, long threadId, long start, long duration, long cpu, long bytes) {
+      this.name = name;
+      this.category = category;
+      this.threadId = threadId;
+      this.start = start;
+      this.duration = duration;
+      this.cpu = cpu;
+      this.bytes = bytes;
+    }
+  }
+
+  class Span implements AutoCloseable {
+    private final String  name;
+    private String        category;
+    private final long    start = System.nanoTime();
+    private long          cpu = -1, bytes = -1;
+
+    private Span (String name, String category) {
+      this.name = name;
+      this.category = category;
+    }
+
+    /**
+     * @param cpu CPU time, in nanoseconds, used by child processes (or -1 if not known)
+     */
+    void setCpu (long cpu) {
+      this.cpu = cpu;
+    }
+
+    /**
+     * @param bytes number of bytes produced by the step
+     */
+    void setBytes (long bytes) {
+      this.bytes = bytes;
+    }
+
+    /**
+     * Change the category, such as when a compile is satisfied from the object cache
+     */
+    void setCategory (String category) {
+      this.category = category;
+    }
+
+    public void close () {
+      Thread thread = Thread.currentThread();
+      threads.putIfAbsent(thread.getId(), thread.getName());
+      events.add(new Event(name, category, thread.getId(), start - origin, System.nanoTime() - start, cpu, bytes));
+    }
+  }
+
+  /**
+   * Start timing one step of the build
+   * @param name name of step, such as "LINK", or the name of the file being compiled
+   * @param category type of step, such as "compile", or "tool"
+   * @return Span which records the step when closed
+   */
+  Span begin (String name, String category) {
+    return new Span(name, category);
+  }
+
+  List<Event> getEvents () {
+    synchronized (events) {
+      return new ArrayList<>(events);
+    }
+  }
+
+  /**
+   * Get a text summary with one line per step (compiles are totaled by category), slowest first
+   * @return summary text
+   */
+  String getSummary () {
+    Map<String,long[]> totals = new LinkedHashMap<>();     // name -> {count, wall, cpu, bytes}
+    for (Event event : getEvents()) {
+      String key = "compile".equals(event.category) || "cached".equals(event.category) ? event.category : event.name;
+      long[] sum = totals.computeIfAbsent(key, k -> new long[] {0, 0, -1, -1});
+      sum[0]++;
+      sum[1] += event.duration;
+      if (event.cpu >= 0) {
+        sum[2] = Math.max(sum[2], 0) + event.cpu;
+      }
+      if (event.bytes >= 0) {
+        sum[3] = Math.max(sum[3], 0) + event.bytes;
+      }
+    }
+    List<Map.Entry<String,long[]>> list = new ArrayList<>(totals.entrySet());
+    list.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+    StringBuilder buf = new StringBuilder("Build Timing:\n");
+    buf.append(String.format("  %-16s %5s %10s %10s %10s%n", "Step", "Count", "Wall ms", "CPU ms", "Bytes"));
+    for (Map.Entry<String,long[]> entry : list) {
+      long[] sum = entry.getValue();
+      buf.append(String.format("  %-16s %5d %10.1f %10s %10s%n", entry.getKey(), sum[0], sum[1] / 1e6,
+                               sum[2] >= 0 ? String.format("%.1f", sum[2] / 1e6) : "-",
+                               sum[3] >= 0 ? Long.toString(sum[3]) : "-"));
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Export the trace in Chrome trace event format (complete "X" events with times in microseconds)
+   * @return JSON text
+   */
+  String toChromeTrace () {
+    StringBuilder buf = new StringBuilder("{\"displayTimeUnit\": \"ms\", \"traceEvents\": [\n");
+    String sep = "";
+    for (Map.Entry<Long,String> entry : new TreeMap<>(threads).entrySet()) {
+      buf.append(sep).append("  {\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": ").append(entry.getKey())
+         .append(", \"args\": {\"name\": ").append(Utility.toJSON(entry.getValue())).append("}}");
+      sep = ",\n";
+    }
+    for (Event event : getEvents()) {
+      buf.append(sep).append("  {\"name\": ").append(Utility.toJSON(event.name))
+         .append(", \"cat\": ").append(Utility.toJSON(event.category))
+         .append(", \"ph\": \"X\", \"pid\": 1, \"tid\": ").append(event.threadId)
+         .append(", \"ts\": ").append(event.start / 1000)
+         .append(", \"dur\": ").append(event.duration / 1000)
+         .append(", \"args\": {");
+      String argSep = "";
+      if (event.cpu >= 0) {
+        buf.append("\"cpu_us\": ").append(event.cpu / 1000);
+        argSep = ", ";
+      }
+      if (event.bytes >= 0) {
+        buf.append(argSep).append("\"bytes\": ").append(event.bytes);
+      }
+      buf.append("}}");
+      sep = ",\n";
+    }
+    buf.append("\n]}");
+    return buf.toString();
+  }
+}
@@ -4,6 +4,7 @@ import cppsyntaxpane.lexers.CppLexer;
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.PlainDocument;
 import java.awt.*;
@@ -23,6 +24,7 @@ class CodeEditPane extends JPanel {
   private final Preferences       prefs;
   private MarkupView              docPane;
   private CodeChangeListener      codeChangeListener;
+  private SourceIndex             sourceIndex = new SourceIndex("");
 
 
   CodeEditPane (Preferences prefs) {
@@ -41,11 +43,17 @@ class CodeEditPane extends JPanel {
     doc.addDocumentListener(new DocumentListener() {
       @Override
       public void insertUpdate(DocumentEvent e) {
+        try {
+          sourceIndex.insert(e.getOffset(), doc.getText(e.getOffset(), e.getLength()));
+        } catch (BadLocationException ex) {
+          sourceIndex = new SourceIndex(codePane.getText());
+        }
         codeChanged();
       }
 
       @Override
       public void removeUpdate(DocumentEvent e) {
+        sourceIndex.remove(e.getOffset(), e.getLength());
         codeChanged();
       }
 
@@ -163,6 +171,13 @@ class CodeEditPane extends JPanel {
     return codePane.getText();
   }
 
+  /**
+   * @return SourceIndex for the code, which is kept up to date as the code is edited (use only on the Swing thread)
+   */
+  SourceIndex getSourceIndex () {
+    return sourceIndex;
+  }
+
   interface CodeChangeListener extends EventListener {
     void codeChanged ();
   }
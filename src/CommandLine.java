@@ -0,0 +1,508 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *  Headless command line interface which runs the same ATTinyCompiler build pipeline as the IDE, but
+ *  without starting the Swing UI, for use on build servers.  Output from the toolchain commands is
+ *  sent to stderr.  Exit status is 0 if all builds succeeded, 1 if any build failed and 2 for a usage
+ *  error.
+ *
+ *  Usage: java -jar ATTiny10IDE.jar build [options] file (.c, .cpp, .ino, or .s)
+ *    Builds file and prints the result to stdout as a JSON object
+ *    -chip name          overrides #pragma chip
+ *    -clock hz           overrides #pragma clock
+ *    -fuses names        overrides #pragma fuses (ATTiny4/5/9/10 fuse names, such as "ckout,rstdisbl")
+ *    -lfuse, -hfuse, -efuse value
+ *                        overrides #pragma lfuse, hfuse and efuse
+ *    -out dir            directory for .hex and .lst files (default: directory containing source file)
+ *    -work dir           build directory (default: a directory in java.io.tmpdir unique to the source file)
+ *    -toolchain dir      AVR toolchain directory (installed there if missing, default: the IDE's toolchain)
+ *    -cache dir          object cache directory (default: the IDE's object cache)
+ *    -nocache            disable the object cache
+ *    -protos             generate function prototypes
+ *    -profile name       build profile, "release" (-Os and LTO, the default) or "fast" (-O1, no LTO)
+ *    -nolist             skip generating the .lst file (avr-objdump is often the slowest step of a build)
+ *    -trace file         save the timing of each build step to file as Chrome trace JSON (build only)
+ *
+ *  Usage: java -jar ATTiny10IDE.jar matrix -chips names [-clocks values] [-jobs n] [-json] [options] file
+ *    Builds file for every combination of chip and clock concurrently, each in its own build directory,
+ *    and prints a table of flash and RAM usage, or failures (or a JSON array, if -json is used)
+ *    -chips names        comma separated list of chips, or "all"
+ *    -clocks values      comma separated list of clock values (default: #pragma clock)
+ *    -jobs n             maximum number of concurrent builds (default: number of processors)
+ *    -out dir            if used, saves each build's .hex and .lst files in dir as file-chip-clock.hex, etc
+ *    other options are the same as for build (except -chip, -clock and -trace)
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class CommandLine {
+  private static final String   fileSep = System.getProperty("file.separator");
+  private static final String   tempBase = System.getProperty("java.io.tmpdir").endsWith(fileSep) ?
+                                  System.getProperty("java.io.tmpdir") : System.getProperty("java.io.tmpdir") + fileSep;
+  private static final String   usage =
+      "Usage: build [-chip name] [-clock hz] [-fuses names] [-lfuse val] [-hfuse val] [-efuse val]\n" +
+      "             [-out dir] [-work dir] [-toolchain dir] [-cache dir] [-nocache] [-protos] [-nolist]\n" +
+      "             [-profile fast|release] [-trace file] file\n" +
+      "       matrix -chips names|all [-clocks values] [-jobs n] [-json] [build options] file";
+
+  static class UsageException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    UsageException (String msg) {
+      super(msg);
+    }
+  }
+
+  /**
+   * Options common to all commands
+   */
+  private static class Options {
+    final Map<String,String>  tags = new HashMap<>();
+    final List<String>        chips = new ArrayList<>(), clocks = new ArrayList<>();
+    String                    outDir, workDir, srcPath, tracePath;
+    String                    toolchain = tempBase + "avr-toolchain" + fileSep;
+    String                    cacheDir = tempBase + "avr-object-cache" + fileSep;
+    int                       jobs = Runtime.getRuntime().availableProcessors();
+    boolean                   json, listing = true;
+  }
+
+  /**
+   * One build of the source file and its result
+   */
+  private static class Job {
+    final String              chip, clock, workDir;
+    String                    hexFile, lstFile, error;
+    Map<String,String>        result;
+    long                      buildTime;
+
+    Job (String chip, String clock, String workDir) {
+      this.chip = chip;
+      this.clock = clock;
+      this.workDir = workDir;
+    }
+  }
+
+  /**
+   * @param cmd first command line argument
+   * @return true if cmd names a command handled by run()
+   */
+  static boolean isCommand (String cmd) {
+    return "build".equals(cmd) || "matrix".equals(cmd);
+  }
+
+  /**
+   * Run a command with stdout redirected to stderr, so only the command's result is printed to stdout
+   * @param args command line arguments (args[0] is the command)
+   * @return exit status
+   */
+  static int run (String[] args) {
+    PrintStream out = System.out;
+    System.setOut(System.err);
+    try {
+      return run(args, out);
+    } finally {
+      System.setOut(out);
+    }
+  }
+
+  static int run (String[] args, PrintStream out) {
+    try {
+      boolean matrix = "matrix".equals(args[0]);
+      if (!matrix && !"build".equals(args[0])) {
+        throw new UsageException("Unknown command: " + args[0]);
+      }
+      Options opts = parseOptions(Arrays.copyOfRange(args, 1, args.length), matrix);
+      return matrix ? matrix(opts, out) : build(opts, out);
+    } catch (UsageException ex) {
+      System.err.println(ex.getMessage());
+      System.err.println(usage);
+      return 2;
+    }
+  }
+
+  private static Options parseOptions (String[] args, boolean matrix) {
+    Options opts = new Options();
+    for (int ii = 0; ii < args.length; ii++) {
+      String arg = args[ii];
+      boolean flag = "-nocache".equals(arg) || "-protos".equals(arg) || "-json".equals(arg) || "-nolist".equals(arg);
+      if (arg.startsWith("-") && !flag && ii + 1 >= args.length) {
+        throw new UsageException("Missing value for option: " + arg);
+      }
+      if (matrix ? "-chip".equals(arg) || "-clock".equals(arg) || "-trace".equals(arg) :
+                   "-chips".equals(arg) || "-clocks".equals(arg) || "-jobs".equals(arg) || "-json".equals(arg)) {
+        throw new UsageException("Option not valid for this command: " + arg);
+      }
+      switch (arg) {
+        case "-chip":       opts.tags.put("OVERRIDE.CHIP", args[++ii]);  break;
+        case "-clock":      opts.tags.put("OVERRIDE.CLOCK", args[++ii]); break;
+        case "-fuses":      opts.tags.put("OVERRIDE.FUSES", args[++ii]); break;
+        case "-lfuse":      opts.tags.put("OVERRIDE.LFUSE", args[++ii]); break;
+        case "-hfuse":      opts.tags.put("OVERRIDE.HFUSE", args[++ii]); break;
+        case "-efuse":      opts.tags.put("OVERRIDE.EFUSE", args[++ii]); break;
+        case "-out":        opts.outDir = dirPath(args[++ii]);           break;
+        case "-work":       opts.workDir = dirPath(args[++ii]);          break;
+        case "-toolchain":  opts.toolchain = dirPath(args[++ii]);        break;
+        case "-cache":      opts.cacheDir = dirPath(args[++ii]);         break;
+        case "-nocache":    opts.cacheDir = null;                        break;
+        case "-protos":     opts.tags.put("PREPROCESS", "GENPROTOS");    break;
+        case "-profile":
+          String profile = args[++ii].toLowerCase();
+          if (!"fast".equals(profile) && !"release".equals(profile)) {
+            throw new UsageException("Invalid value for -profile: " + args[ii]);
+          }
+          opts.tags.put("OVERRIDE.PROFILE", profile);
+          break;
+        case "-nolist":     opts.listing = false;                        break;
+        case "-json":       opts.json = true;                            break;
+        case "-trace":      opts.tracePath = args[++ii];                 break;
+        case "-chips":
+          String chips = args[++ii].toLowerCase();
+          opts.chips.addAll("all".equals(chips) ? ATTinyC.progProtocol.keySet() : Arrays.asList(chips.split(",")));
+          break;
+        case "-clocks":
+          opts.clocks.addAll(Arrays.asList(args[++ii].split(",")));
+          break;
+        case "-jobs":
+          try {
+            opts.jobs = Integer.parseInt(args[++ii]);
+          } catch (NumberFormatException ex) {
+            throw new UsageException("Invalid value for -jobs: " + args[ii]);
+          }
+          break;
+        default:
+          if (arg.startsWith("-") || opts.srcPath != null) {
+            throw new UsageException("Invalid argument: " + arg);
+          }
+          opts.srcPath = arg;
+          break;
+      }
+    }
+    // Builds use the release profile unless -profile is used (not the profile set in the IDE's preferences)
+    opts.tags.putIfAbsent("OVERRIDE.PROFILE", "release");
+    if (opts.srcPath == null) {
+      throw new UsageException("No source file specified");
+    }
+    String fName = opts.srcPath.toLowerCase();
+    if (!fName.endsWith(".c") && !fName.endsWith(".cpp") && !fName.endsWith(".ino") && !fName.endsWith(".s")) {
+      throw new UsageException("Unsupported source file type: " + new File(opts.srcPath).getName());
+    }
+    if (!new File(opts.srcPath).exists()) {
+      throw new UsageException("Source file not found: " + opts.srcPath);
+    }
+    if (matrix && opts.chips.isEmpty()) {
+      throw new UsageException("No chips specified (use -chips)");
+    }
+    for (String chip : opts.chips) {
+      if (!ATTinyC.progProtocol.containsKey(chip)) {
+        throw new UsageException("Unknown chip: " + chip);
+      }
+    }
+    return opts;
+  }
+
+  /**
+   * Build one source file and print the result as JSON
+   * @param opts Options
+   * @param out PrintStream for JSON result
+   * @return exit status
+   */
+  private static int build (Options opts, PrintStream out) {
+    long start = System.nanoTime();
+    File srcFile = new File(opts.srcPath).getAbsoluteFile();
+    String workDir = opts.workDir != null ? opts.workDir : tempBase + "avr-cli-code" + fileSep +
+                                                           Integer.toHexString(srcFile.getPath().hashCode()) + fileSep;
+    String outDir = opts.outDir != null ? opts.outDir : srcFile.getParent() + fileSep;
+    Job job = new Job(null, null, workDir);
+    long toolTime = 0;
+    try {
+      long time = System.nanoTime();
+      setupToolchain(opts);
+      toolTime = System.nanoTime() - time;
+      runJob(opts, job, srcFile, outDir + getBaseName(srcFile));
+      if (opts.tracePath != null && job.result != null) {
+        Utility.saveFile(opts.tracePath, job.result.get("TRACEJSON"));
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      job.error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+    }
+    StringBuilder buf = new StringBuilder("{\n");
+    buf.append("  \"source\": ").append(Utility.toJSON(srcFile.getPath())).append(",\n");
+    appendJobJSON(buf, job, "  ");
+    buf.append(",\n");
+    buf.append("  \"timings\": {\"toolchain_ms\": ").append(toolTime / 1000000)
+       .append(", \"build_ms\": ").append(job.buildTime / 1000000)
+       .append(", \"total_ms\": ").append((System.nanoTime() - start) / 1000000).append("}\n");
+    buf.append("}");
+    out.println(buf);
+    return job.error == null ? 0 : 1;
+  }
+
+  /**
+   * Build one source file for every combination of chip and clock value, running the builds
+   * concurrently, each in its own build directory, then print a table of results
+   * @param opts Options
+   * @param out PrintStream for table, or JSON result
+   * @return exit status
+   */
+  private static int matrix (Options opts, PrintStream out) {
+    long start = System.nanoTime();
+    File srcFile = new File(opts.srcPath).getAbsoluteFile();
+    String workBase = opts.workDir != null ? opts.workDir : tempBase + "avr-cli-code" + fileSep +
+                                               Integer.toHexString(srcFile.getPath().hashCode()) + "-matrix" + fileSep;
+    List<String> clocks = opts.clocks.isEmpty() ? Collections.singletonList(null) : opts.clocks;
+    List<Job> jobs = new ArrayList<>();
+    for (String chip : opts.chips) {
+      for (String clock : clocks) {
+        jobs.add(new Job(chip, clock, workBase + chip + (clock != null ? "-" + clock : "") + fileSep));
+      }
+    }
+    try {
+      setupToolchain(opts);
+    } catch (Exception ex) {
+      System.err.println("Unable to install toolchain: " + ex.getMessage());
+      return 1;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(opts.jobs, jobs.size())), runnable -> {
+      Thread thread = new Thread(runnable, "Matrix Build");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Job job : jobs) {
+        String outBase = null;
+        if (opts.outDir != null) {
+          outBase = opts.outDir + getBaseName(srcFile) + "-" + job.chip + (job.clock != null ? "-" + job.clock : "");
+        }
+        String jobOut = outBase;
+        futures.add(pool.submit(() -> {
+          try {
+            runJob(opts, job, srcFile, jobOut);
+          } catch (Exception ex) {
+            ex.printStackTrace();
+            job.error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      return 1;
+    } finally {
+      pool.shutdownNow();
+    }
+    boolean failed = false;
+    if (opts.json) {
+      StringBuilder buf = new StringBuilder("{\n");
+      buf.append("  \"source\": ").append(Utility.toJSON(srcFile.getPath())).append(",\n");
+      buf.append("  \"builds\": [");
+      String sep = "\n";
+      for (Job job : jobs) {
+        buf.append(sep).append("    {\n");
+        buf.append("      \"clock\": ").append(Utility.toJSON(job.clock)).append(",\n");
+        appendJobJSON(buf, job, "      ");
+        buf.append(",\n      \"build_ms\": ").append(job.buildTime / 1000000).append("\n    }");
+        sep = ",\n";
+        failed |= job.error != null;
+      }
+      buf.append("\n  ],\n");
+      buf.append("  \"total_ms\": ").append((System.nanoTime() - start) / 1000000).append("\n}");
+      out.println(buf);
+    } else {
+      out.printf("%-10s %-10s %8s %8s %8s  %s%n", "Chip", "Clock", "Flash", "RAM", "Time", "Status");
+      for (Job job : jobs) {
+        String clock = job.clock;
+        if (clock == null) {
+          // Show clock value set by #pragma clock
+          Matcher mat = Pattern.compile("clock: ([0-9]+)").matcher(job.result != null && job.result.get("INFO") != null ?
+                                                                   job.result.get("INFO") : "");
+          clock = mat.find() ? mat.group(1) : "-";
+        }
+        if (job.error == null) {
+          long[] size = getSize(job.result.get("SIZE"));
+          out.printf("%-10s %-10s %8d %8d %7.1fs  ok%n", job.chip, clock, size[0], size[1], job.buildTime / 1e9);
+        } else {
+          String msg = job.error.trim().replace("\n", " ");
+          msg = msg.length() > 100 ? msg.substring(0, 100) + "..." : msg;
+          out.printf("%-10s %-10s %8s %8s %7.1fs  failed: %s%n", job.chip, clock, "-", "-", job.buildTime / 1e9, msg);
+          failed = true;
+        }
+      }
+      out.printf("%d builds in %.1fs%n", jobs.size(), (System.nanoTime() - start) / 1e9);
+    }
+    return failed ? 1 : 0;
+  }
+
+  /**
+   * Install the toolchain, if needed, and set the toolchain tags in opts
+   */
+  private static void setupToolchain (Options opts) throws Exception {
+    if (!new File(opts.toolchain + "bin").exists()) {
+      String zip = Utility.getToolchainZip();
+      if (zip == null) {
+        throw new IllegalStateException("No AVR toolchain available for " + System.getProperty("os.name"));
+      }
+      System.out.println("Installing AVR toolchain in " + opts.toolchain);
+      Utility.unzipResource(zip, new File(opts.toolchain), null);
+    }
+    opts.tags.put("TEXE", opts.toolchain);
+    opts.tags.put("IDIR", opts.toolchain + "avr" + fileSep + "include" + fileSep);
+    // Same as the IDE's toolchain CRC, so objects and core archives in the IDE's object cache are shared
+    opts.tags.put("TOOLCRC", Long.toHexString(Utility.crcZipfile(Utility.getToolchainZip())));
+    if (opts.cacheDir != null) {
+      opts.tags.put("CDIR", opts.cacheDir);
+    }
+  }
+
+  /**
+   * Run one build and, if successful, save its .hex and .lst files
+   * @param opts Options
+   * @param job Job to run
+   * @param srcFile source file
+   * @param outBase path and base name for .hex and .lst files (or null to not save them)
+   */
+  private static void runJob (Options opts, Job job, File srcFile, String outBase) throws Exception {
+    Map<String,String> tags = new HashMap<>(opts.tags);
+    if (job.chip != null) {
+      tags.put("OVERRIDE.CHIP", job.chip);
+    }
+    if (job.clock != null) {
+      tags.put("OVERRIDE.CLOCK", job.clock);
+    }
+    tags.put("TDIR", job.workDir);
+    tags.put("FNAME", srcFile.getName().toLowerCase());
+    String src = Utility.getFile(srcFile);
+    new File(job.workDir).mkdirs();
+    // Lock the build directory, so concurrent builds using the same directory are run one at a time
+    File lockFile = new File(job.workDir.substring(0, job.workDir.length() - 1) + ".lock");
+    long time = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      FileLock lock = channel.lock();
+      try {
+        // Show compiler and linker output on stderr as it runs
+        BuildMonitor monitor = new BuildMonitor();
+        monitor.setOutputListener(System.err::println);
+        job.result = ATTinyCompiler.compile(src, tags, Preferences.userRoot().node(ATTinyC.class.getName()), null,
+                                            monitor);
+        job.buildTime = System.nanoTime() - time;
+        job.error = job.result.get("ERR");
+        if (job.error == null && outBase != null) {
+          new File(outBase).getParentFile().mkdirs();
+          job.hexFile = outBase + ".hex";
+          Utility.saveFile(new File(job.hexFile), job.result.get("HEX"));
+          if (opts.listing) {
+            // Generate listing while build directory is still locked, as it's read from Sketch.elf
+            job.lstFile = outBase + ".lst";
+            Utility.saveFile(new File(job.lstFile), ATTinyCompiler.getListing(job.result));
+          }
+        }
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * Append the result of a Job as JSON object fields (without a trailing comma)
+   */
+  private static void appendJobJSON (StringBuilder buf, Job job, String indent) {
+    buf.append(indent).append("\"status\": ").append(Utility.toJSON(job.error == null ? "ok" : "error")).append(",\n");
+    if (job.error != null) {
+      buf.append(indent).append("\"chip\": ").append(Utility.toJSON(job.chip)).append(",\n");
+      buf.append(indent).append("\"error\": ").append(Utility.toJSON(job.error)).append(",\n");
+    } else {
+      buf.append(indent).append("\"chip\": ").append(Utility.toJSON(job.result.get("CHIP"))).append(",\n");
+      buf.append(indent).append("\"info\": ").append(Utility.toJSON(job.result.get("INFO"))).append(",\n");
+      buf.append(indent).append("\"profile\": ").append(Utility.toJSON(job.result.get("PROFILE"))).append(",\n");
+      if (job.hexFile != null) {
+        buf.append(indent).append("\"hex\": ").append(Utility.toJSON(job.hexFile)).append(",\n");
+      }
+      if (job.lstFile != null) {
+        buf.append(indent).append("\"listing\": ").append(Utility.toJSON(job.lstFile)).append(",\n");
+      }
+      buf.append(indent).append("\"size\": ").append(getSizeJSON(job.result.get("SIZE"))).append(",\n");
+    }
+    buf.append(indent).append("\"warnings\": [");
+    String warn = job.result != null ? job.result.get("WARN") : null;
+    if (warn != null) {
+      String sep = "";
+      for (String line : warn.split("\n")) {
+        if (line.startsWith("  ")) {
+          buf.append(sep).append(Utility.toJSON(line.trim()));
+          sep = ", ";
+        }
+      }
+    }
+    buf.append("]");
+  }
+
+  /**
+   * Parse output from "avr-size -A" into a Map of section sizes
+   */
+  private static Map<String,Long> getSections (String size) {
+    Map<String,Long> sections = new LinkedHashMap<>();
+    if (size != null) {
+      for (String line : size.split("\n")) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length >= 2 && parts[0].startsWith(".")) {
+          try {
+            sections.put(parts[0], Long.parseLong(parts[1]));
+          } catch (NumberFormatException ex) {
+            // Not a section line
+          }
+        }
+      }
+    }
+    return sections;
+  }
+
+  /**
+   * Compute flash and RAM usage from the output of "avr-size -A"
+   * @return array containing flash and RAM usage, in bytes
+   */
+  static long[] getSize (String size) {
+    Map<String,Long> sections = getSections(size);
+    long flash = sections.getOrDefault(".text", 0L) + sections.getOrDefault(".data", 0L);
+    long ram = sections.getOrDefault(".data", 0L) + sections.getOrDefault(".bss", 0L) +
+               sections.getOrDefault(".noinit", 0L);
+    return new long[] {flash, ram};
+  }
+
+  /**
+   * Convert output from "avr-size -A" into a JSON object with flash and ram totals and section sizes
+   */
+  static String getSizeJSON (String size) {
+    long[] total = getSize(size);
+    StringBuilder buf = new StringBuilder("{\"flash\": " + total[0] + ", \"ram\": " + total[1] + ", \"sections\": {");
+    String sep = "";
+    for (Map.Entry<String,Long> entry : getSections(size).entrySet()) {
+      buf.append(sep).append(Utility.toJSON(entry.getKey())).append(": ").append(entry.getValue());
+      sep = ", ";
+    }
+    return buf.append("}}").toString();
+  }
+
+  private static String getBaseName (File file) {
+    String name = file.getName();
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  private static String dirPath (String dir) {
+    String path = new File(dir).getAbsolutePath();
+    return path.endsWith(fileSep) ? path : path + fileSep;
+  }
+}
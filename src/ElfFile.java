@@ -0,0 +1,280 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *  Reader for the 32 bit, little endian ELF files produced by the AVR toolchain (such as Sketch.elf)
+ *  which generates the same Intel HEX output as "avr-objcopy -O ihex" and the same section size report
+ *  as "avr-size -A", but without starting either program, or writing the hex output to a file.  The
+ *  file is memory mapped and sections are read in place.
+ *
+ *  Each section's load address (LMA), which is where objcopy places it in the hex output, is taken from
+ *  the program header of the segment containing it.  For example, .data has a run time address in RAM
+ *  (0x800060, or so), but is loaded into flash just after .text, so it can be copied to RAM at startup.
+ *
+ *  Note: on Windows, the file is read into memory, rather than mapped, as a mapped file can't be
+ *  replaced (such as by the next link) until the mapping is garbage collected.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class ElfFile {
+  static final int              SHT_NULL = 0, SHT_SYMTAB = 2, SHT_STRTAB = 3, SHT_RELA = 4, SHT_NOBITS = 8,
+                                SHT_REL = 9;
+  static final int              SHF_ALLOC = 2;
+  private static final int      PT_LOAD = 1;
+  private final ByteBuffer      buf;
+  private final List<Section>   sections = new ArrayList<>();
+  private final long            entry;
+
+  static class Section {
+    final String  name;
+    final int     type, flags, link;          // link is index of associated section (such as .symtab's .strtab)
+    final long    addr, offset, size;
+    long          lma;                        // Load address (same as addr, unless in a segment loaded elsewhere)
+
+    Section (String name, int type, int flags, long addr, long offset, long size, int link) {
+      this.name = name;
+      this.type = type;
+      this.flags = flags;
+      this.addr = addr;
+      this.offset = offset;
+      this.size = size;
+      this.link = link;
+      this.lma = addr;
+    }
+
+    /**
+     * @return true if section has contents which are loaded into the device (and output by objcopy)
+     */
+    boolean isLoaded () {
+      return (flags & SHF_ALLOC) != 0 && type != SHT_NOBITS && type != SHT_NULL && size > 0;
+    }
+  }
+
+  /**
+   * Read an ELF file's section and program headers
+   * @param file ELF file
+   * @throws IllegalStateException if file is not a 32 bit, little endian ELF file
+   */
+  ElfFile (File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (System.getProperty("os.name").toLowerCase().contains("win")) {
+        ByteBuffer tmp = ByteBuffer.allocate((int) channel.size());
+        while (tmp.hasRemaining() && channel.read(tmp) >= 0) {
+          // Read whole file
+        }
+        tmp.flip();
+        buf = tmp;
+      } else {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    if (buf.limit() < 52 || buf.getInt(0) != 0x464C457F || buf.get(4) != 1 || buf.get(5) != 1) {
+      throw new IllegalStateException("Not a 32 bit, little endian ELF file: " + file.getName());
+    }
+    entry = getU32(24);
+    int phOff = buf.getInt(28);
+    int shOff = buf.getInt(32);
+    int phSize = getU16(42), phNum = getU16(44);
+    int shSize = getU16(46), shNum = getU16(48), shStrNdx = getU16(50);
+    // Read section headers, then look up their names in the section name string table
+    int[] names = new int[shNum];
+    for (int ii = 0; ii < shNum; ii++) {
+      int off = shOff + ii * shSize;
+      names[ii] = buf.getInt(off);
+    }
+    int strOff = shStrNdx < shNum ? buf.getInt(shOff + shStrNdx * shSize + 16) : 0;
+    for (int ii = 0; ii < shNum; ii++) {
+      int off = shOff + ii * shSize;
+      sections.add(new Section(shStrNdx < shNum ? getString(strOff + names[ii]) : "", buf.getInt(off + 4),
+                               buf.getInt(off + 8), getU32(off + 12), getU32(off + 16), getU32(off + 20),
+                               buf.getInt(off + 24)));
+    }
+    // Use the program headers to find the load address of sections in a loadable segment
+    for (int ii = 0; ii < phNum; ii++) {
+      int off = phOff + ii * phSize;
+      if (buf.getInt(off) != PT_LOAD) {
+        continue;
+      }
+      long pOffset = getU32(off + 4), vAddr = getU32(off + 8), pAddr = getU32(off + 12);
+      long fileSize = getU32(off + 16), memSize = getU32(off + 20);
+      for (Section sec : sections) {
+        if ((sec.flags & SHF_ALLOC) != 0 && sec.addr >= vAddr && sec.addr + sec.size <= vAddr + memSize &&
+            (sec.type == SHT_NOBITS || (sec.offset >= pOffset && sec.offset + sec.size <= pOffset + fileSize))) {
+          sec.lma = pAddr + sec.addr - vAddr;
+        }
+      }
+    }
+  }
+
+  List<Section> getSections () {
+    return Collections.unmodifiableList(sections);
+  }
+
+  /**
+   * @param name section name, such as ".text"
+   * @return first Section with name, or null if not found
+   */
+  Section getSection (String name) {
+    for (Section sec : sections) {
+      if (sec.name.equals(name)) {
+        return sec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return little endian ByteBuffer containing the contents of a section (position 0 is start of section)
+   */
+  ByteBuffer getData (Section sec) {
+    ByteBuffer dup = buf.duplicate();
+    dup.position((int) sec.offset);
+    dup.limit((int) (sec.offset + sec.size));
+    return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Read a zero terminated string
+   * @param off offset in file
+   */
+  String getString (int off) {
+    int end = off;
+    while (end < buf.limit() && buf.get(end) != 0) {
+      end++;
+    }
+    byte[] data = new byte[end - off];
+    for (int ii = 0; ii < data.length; ii++) {
+      data[ii] = buf.get(off + ii);
+    }
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Generate Intel HEX for the loaded sections in the same format as "avr-objcopy -O ihex", which is
+   * 16 bytes per record, with each section starting a new record, and each placed at its load address
+   * @param exclude names of sections to leave out (such as ".eeprom")
+   * @return Intel HEX text
+   */
+  String toIntelHex (String... exclude) {
+    Set<String> skip = new HashSet<>(Arrays.asList(exclude));
+    StringBuilder hex = new StringBuilder();
+    long segBase = 0, extBase = 0;
+    for (Section sec : sections) {
+      if (!sec.isLoaded() || skip.contains(sec.name)) {
+        continue;
+      }
+      ByteBuffer data = getData(sec);
+      long where = sec.lma;
+      while (data.hasRemaining()) {
+        if (where > segBase + extBase + 0xFFFF) {
+          // Select the 64K block containing where using a segment (type 02) or linear (type 04) address record
+          if (where <= 0xFFFFF) {
+            segBase = where & 0xF0000;
+            addRecord(hex, 0, 2, new byte[] {(byte) (segBase >> 12), 0});
+          } else {
+            if (segBase != 0) {
+              segBase = 0;
+              addRecord(hex, 0, 2, new byte[2]);
+            }
+            extBase = where & 0xFFFF0000L;
+            addRecord(hex, 0, 4, new byte[] {(byte) (extBase >> 24), (byte) (extBase >> 16)});
+          }
+        }
+        int offset = (int) (where - segBase - extBase);
+        byte[] line = new byte[Math.min(Math.min(16, data.remaining()), 0x10000 - offset)];
+        data.get(line);
+        addRecord(hex, offset, 0, line);
+        where += line.length;
+      }
+    }
+    if (entry != 0) {
+      // Start address record
+      byte[] start = new byte[] {(byte) (entry >> 24), (byte) (entry >> 16), (byte) (entry >> 8), (byte) entry};
+      if (entry <= 0xFFFFF) {
+        addRecord(hex, 0, 3, new byte[] {(byte) ((entry & 0xF0000) >> 12), 0, start[2], start[3]});
+      } else {
+        addRecord(hex, 0, 5, start);
+      }
+    }
+    addRecord(hex, 0, 1, new byte[0]);
+    return hex.toString();
+  }
+
+  private static void addRecord (StringBuilder hex, int address, int type, byte[] data) {
+    byte[] rec = new byte[data.length + 4];
+    rec[0] = (byte) data.length;
+    rec[1] = (byte) (address >> 8);
+    rec[2] = (byte) address;
+    rec[3] = (byte) type;
+    System.arraycopy(data, 0, rec, 4, data.length);
+    int sum = 0;
+    hex.append(':');
+    for (byte val : rec) {
+      sum += val;
+      hex.append(Utility.hexChar((byte) (val >> 4))).append(Utility.hexChar(val));
+    }
+    byte check = (byte) -sum;
+    hex.append(Utility.hexChar((byte) (check >> 4))).append(Utility.hexChar(check)).append("\r\n");
+  }
+
+  /**
+   * Get the size of each section in the same order, and with the same exclusions as "avr-size -A"
+   * @return Map of section name to size in bytes
+   */
+  Map<String,Long> getSectionSizes () {
+    Map<String,Long> sizes = new LinkedHashMap<>();
+    for (Section sec : sections) {
+      if (sec.type != SHT_NULL && sec.type != SHT_SYMTAB && sec.type != SHT_STRTAB && sec.type != SHT_REL &&
+          sec.type != SHT_RELA) {
+        sizes.put(sec.name, sec.size);
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * Generate a section size report in the same format as "avr-size -A"
+   * @param fileName name of file shown in the report
+   * @return report text
+   */
+  String getSizeReport (String fileName) {
+    Map<String,Long> sizes = getSectionSizes();
+    int nameLen = "section".length(), sizeLen = "size".length(), addrLen = "addr".length();
+    long total = 0;
+    for (Section sec : sections) {
+      if (sizes.containsKey(sec.name)) {
+        nameLen = Math.max(nameLen, sec.name.length());
+        sizeLen = Math.max(sizeLen, Long.toString(sec.size).length());
+        addrLen = Math.max(addrLen, Long.toString(sec.addr).length());
+        total += sec.size;
+      }
+    }
+    sizeLen = Math.max(sizeLen, Long.toString(total).length());
+    StringBuilder report = new StringBuilder(fileName + "  :\n");
+    report.append(String.format("%-" + nameLen + "s   %" + sizeLen + "s   %" + addrLen + "s\n", "section", "size", "addr"));
+    for (Section sec : sections) {
+      if (sizes.containsKey(sec.name)) {
+        report.append(String.format("%-" + nameLen + "s   %" + sizeLen + "d   %" + addrLen + "d\n", sec.name, sec.size,
+                                    sec.addr));
+      }
+    }
+    report.append(String.format("%-" + nameLen + "s   %" + sizeLen + "d\n\n\n", "Total", total));
+    return report.toString();
+  }
+
+  private int getU16 (int off) {
+    return buf.getShort(off) & 0xFFFF;
+  }
+
+  private long getU32 (int off) {
+    return buf.getInt(off) & 0xFFFFFFFFL;
+  }
+}
@@ -0,0 +1,328 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  Index of the symbols (.symtab) and source line table (.debug_line) in an ElfFile, such as Sketch.elf,
+ *  which answers name to symbol, address to symbol and address to source line queries without parsing
+ *  the text output of avr-objdump.  Address lookups use a binary search of tables sorted by address.
+ *
+ *  The line table is read from DWARF version 2, 3 and 4 line number programs, which are the versions
+ *  avr-gcc generates.  Units with other versions are skipped, so their addresses have no source line.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class ElfIndex {
+  static final int                  STT_OBJECT = 1, STT_FUNC = 2;
+  private final Map<String,Symbol>  byName = new HashMap<>();
+  private final Symbol[]            byAddress;
+  private long[]                    lineAddrs = new long[256];
+  private int[]                     lineNums = new int[256];
+  private String[]                  lineFiles = new String[256];
+  private boolean[]                 lineEnds = new boolean[256];
+  private int                       lineCount;
+
+  static class Symbol {
+    final String  name;
+    final long    value, size;
+    final int     type, section;              // STT_xxx type and index of section symbol is defined in
+
+    Symbol (String name, long value, long size, int type, int section) {
+      this.name = name;
+      this.value = value;
+      this.size = size;
+      this.type = type;
+      this.section = section;
+    }
+  }
+
+  static class SourceLine {
+    final String  file;                       // Path to source file, as recorded by the compiler
+    final int     line;
+
+    SourceLine (String file, int line) {
+      this.file = file;
+      this.line = line;
+    }
+
+    public String toString () {
+      return file + ":" + line;
+    }
+  }
+
+  ElfIndex (ElfFile elf) {
+    List<Symbol> symbols = new ArrayList<>();
+    ElfFile.Section symtab = elf.getSection(".symtab");
+    if (symtab != null && symtab.link < elf.getSections().size()) {
+      ElfFile.Section strtab = elf.getSections().get(symtab.link);
+      ByteBuffer data = elf.getData(symtab);
+      for (int off = 16; off + 16 <= data.limit(); off += 16) {         // Entry 0 is the undefined symbol
+        int name = data.getInt(off);
+        int type = data.get(off + 12) & 0x0F;
+        int section = data.getShort(off + 14) & 0xFFFF;
+        if (name != 0 && section != 0) {
+          Symbol sym = new Symbol(elf.getString((int) strtab.offset + name), data.getInt(off + 4) & 0xFFFFFFFFL,
+                                  data.getInt(off + 8) & 0xFFFFFFFFL, type, section);
+          symbols.add(sym);
+          Symbol old = byName.get(sym.name);
+          if (old == null || (old.type != STT_OBJECT && old.type != STT_FUNC)) {
+            byName.put(sym.name, sym);
+          }
+        }
+      }
+    }
+    // Sort by address with objects and functions last, so getSymbolAt() prefers them over labels at the same address
+    symbols.sort(Comparator.comparingLong((Symbol sym) -> sym.value)
+                     .thenComparingInt(sym -> sym.type == STT_OBJECT || sym.type == STT_FUNC ? 1 : 0));
+    byAddress = symbols.toArray(new Symbol[0]);
+    ElfFile.Section debugLine = elf.getSection(".debug_line");
+    if (debugLine != null) {
+      readLineTable(elf.getData(debugLine));
+      sortLineTable();
+    }
+  }
+
+  /**
+   * @param name symbol name
+   * @return Symbol, or null if not found (a data object, or function is returned if name is also used for a label)
+   */
+  Symbol getSymbol (String name) {
+    return byName.get(name);
+  }
+
+  /**
+   * Find the symbol at, or before an address
+   * @param addr address (for data in RAM, this includes the 0x800000 offset used for the data address space)
+   * @return Symbol with the highest value that's <= addr, or null if none
+   */
+  Symbol getSymbolAt (long addr) {
+    int lo = 0, hi = byAddress.length - 1, found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (byAddress[mid].value <= addr) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found >= 0 ? byAddress[found] : null;
+  }
+
+  /**
+   * Find the source line which generated the code at an address
+   * @param addr address in flash
+   * @return SourceLine, or null if addr isn't covered by the line table
+   */
+  SourceLine getSourceLine (long addr) {
+    int lo = 0, hi = lineCount - 1, found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lineAddrs[mid] <= addr) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found >= 0 && !lineEnds[found] ? new SourceLine(lineFiles[found], lineNums[found]) : null;
+  }
+
+  /**
+   * Run each DWARF line number program in .debug_line and record the rows it generates
+   * @param data contents of .debug_line section
+   */
+  private void readLineTable (ByteBuffer data) {
+    int unit = 0;
+    while (unit + 4 <= data.limit()) {
+      data.position(unit);
+      long length = data.getInt() & 0xFFFFFFFFL;
+      boolean dwarf64 = length == 0xFFFFFFFFL;
+      if (dwarf64) {
+        length = data.getLong();
+      }
+      int end = data.position() + (int) length;
+      unit = end;
+      if (length == 0 || end > data.limit()) {
+        break;
+      }
+      int version = data.getShort() & 0xFFFF;
+      if (version < 2 || version > 4) {
+        continue;
+      }
+      long headerLength = dwarf64 ? data.getLong() : data.getInt() & 0xFFFFFFFFL;
+      int program = data.position() + (int) headerLength;
+      int minInstLength = data.get() & 0xFF;
+      if (version >= 4) {
+        data.get();                               // maximum_operations_per_instruction (always 1 for AVR)
+      }
+      data.get();                                 // default_is_stmt (rows are recorded whether, or not statements)
+      int lineBase = data.get();
+      int lineRange = data.get() & 0xFF;
+      int opcodeBase = data.get() & 0xFF;
+      int[] opLengths = new int[opcodeBase];
+      for (int ii = 1; ii < opcodeBase; ii++) {
+        opLengths[ii] = data.get() & 0xFF;
+      }
+      List<String> dirs = new ArrayList<>();
+      dirs.add("");
+      for (String dir = getString(data); dir.length() > 0; dir = getString(data)) {
+        dirs.add(dir);
+      }
+      List<String> files = new ArrayList<>();
+      files.add("");
+      for (String file = getString(data); file.length() > 0; file = getString(data)) {
+        files.add(getPath(dirs, (int) getULEB(data), file));
+        getULEB(data);                            // Modification time
+        getULEB(data);                            // File length
+      }
+      data.position(program);
+      // Line number state machine (is_stmt, column, basic_block, etc are not needed for lookups)
+      long address = 0;
+      int file = 1, line = 1;
+      while (data.position() < end) {
+        int op = data.get() & 0xFF;
+        if (op >= opcodeBase) {
+          int adj = op - opcodeBase;
+          address += (adj / lineRange) * minInstLength;
+          line += lineBase + adj % lineRange;
+          addRow(address, files, file, line, false);
+          continue;
+        }
+        switch (op) {
+          case 0:                                 // Extended opcode
+            int len = (int) getULEB(data);
+            int next = data.position() + len;
+            int subOp = len > 0 ? data.get() & 0xFF : 0;
+            if (subOp == 1) {                     // DW_LNE_end_sequence
+              addRow(address, files, file, line, true);
+              address = 0;
+              file = 1;
+              line = 1;
+            } else if (subOp == 2) {              // DW_LNE_set_address
+              address = len - 1 == 8 ? data.getLong() : len - 1 == 4 ? data.getInt() & 0xFFFFFFFFL :
+                                                       data.getShort() & 0xFFFF;
+            } else if (subOp == 3) {              // DW_LNE_define_file
+              String name = getString(data);
+              files.add(getPath(dirs, (int) getULEB(data), name));
+            }
+            data.position(next);
+            break;
+          case 1:                                 // DW_LNS_copy
+            addRow(address, files, file, line, false);
+            break;
+          case 2:                                 // DW_LNS_advance_pc
+            address += getULEB(data) * minInstLength;
+            break;
+          case 3:                                 // DW_LNS_advance_line
+            line += (int) getSLEB(data);
+            break;
+          case 4:                                 // DW_LNS_set_file
+            file = (int) getULEB(data);
+            break;
+          case 8:                                 // DW_LNS_const_add_pc
+            address += ((255 - opcodeBase) / lineRange) * minInstLength;
+            break;
+          case 9:                                 // DW_LNS_fixed_advance_pc
+            address += data.getShort() & 0xFFFF;
+            break;
+          default:                                // Skip operands of opcodes which don't change address, file, or line
+            for (int ii = 0; ii < opLengths[op]; ii++) {
+              getULEB(data);
+            }
+            break;
+        }
+      }
+    }
+  }
+
+  private void addRow (long address, List<String> files, int file, int line, boolean end) {
+    if (lineCount == lineAddrs.length) {
+      int size = lineCount * 2;
+      lineAddrs = Arrays.copyOf(lineAddrs, size);
+      lineNums = Arrays.copyOf(lineNums, size);
+      lineFiles = Arrays.copyOf(lineFiles, size);
+      lineEnds = Arrays.copyOf(lineEnds, size);
+    }
+    lineAddrs[lineCount] = address;
+    lineNums[lineCount] = line;
+    lineFiles[lineCount] = file < files.size() ? files.get(file) : "";
+    lineEnds[lineCount] = end;
+    lineCount++;
+  }
+
+  /**
+   * Sort rows by address, keeping the order rows were generated for the same address, except that a row
+   * ending a sequence comes before the rows of a sequence which starts at the same address
+   */
+  private void sortLineTable () {
+    Integer[] order = new Integer[lineCount];
+    for (int ii = 0; ii < lineCount; ii++) {
+      order[ii] = ii;
+    }
+    Arrays.sort(order, Comparator.comparingLong((Integer idx) -> lineAddrs[idx])
+                                 .thenComparing(idx -> !lineEnds[idx])
+                                 .thenComparingInt(idx -> idx));
+    long[] addrs = new long[lineCount];
+    int[] nums = new int[lineCount];
+    String[] files = new String[lineCount];
+    boolean[] ends = new boolean[lineCount];
+    for (int ii = 0; ii < lineCount; ii++) {
+      addrs[ii] = lineAddrs[order[ii]];
+      nums[ii] = lineNums[order[ii]];
+      files[ii] = lineFiles[order[ii]];
+      ends[ii] = lineEnds[order[ii]];
+    }
+    lineAddrs = addrs;
+    lineNums = nums;
+    lineFiles = files;
+    lineEnds = ends;
+  }
+
+  private static String getPath (List<String> dirs, int dir, String file) {
+    if (dir <= 0 || dir >= dirs.size() || file.startsWith("/") || file.matches("^[A-Za-z]:[\\\\/].*")) {
+      return file;
+    }
+    return dirs.get(dir) + "/" + file;
+  }
+
+  private static String getString (ByteBuffer data) {
+    int start = data.position();
+    while (data.get() != 0) {
+      // Find end of string
+    }
+    byte[] bytes = new byte[data.position() - start - 1];
+    for (int ii = 0; ii < bytes.length; ii++) {
+      bytes[ii] = data.get(start + ii);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static long getULEB (ByteBuffer data) {
+    long val = 0;
+    int shift = 0;
+    byte tmp;
+    do {
+      tmp = data.get();
+      val |= (long) (tmp & 0x7F) << shift;
+      shift += 7;
+    } while ((tmp & 0x80) != 0);
+    return val;
+  }
+
+  private static long getSLEB (ByteBuffer data) {
+    long val = 0;
+    int shift = 0;
+    byte tmp;
+    do {
+      tmp = data.get();
+      val |= (long) (tmp & 0x7F) << shift;
+      shift += 7;
+    } while ((tmp & 0x80) != 0);
+    if (shift < 64 && (tmp & 0x40) != 0) {
+      val |= -1L << shift;
+    }
+    return val;
+  }
+}
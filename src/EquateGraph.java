@@ -0,0 +1,339 @@
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ *  Dependency graph for assembler equates (.equ, .eq and .def) which evaluates each equate lazily,
+ *  so an equate can reference symbols defined later in the source.  Values are cached once computed
+ *  and redefining an equate, or changing the value of a symbol it uses, only invalidates its dependents.
+ *
+ *  A graph can be kept between assemblies of the same source (see beginPass()), so an equate whose
+ *  expression is unchanged keeps its parsed tokens and cached value.  The graph remembers the value of
+ *  each symbol its equates used, so after an edit only the dependents of the edited equates, or of
+ *  labels which moved, are evaluated again.
+ *
+ *  A cached value is only current once every symbol the equate uses, directly or indirectly, has been
+ *  defined in the current pass, so the assembler uses isDefined() to defer instructions which use an
+ *  equate, or label defined later in the source until all the equates are evaluated (see evaluateAll()).
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class EquateGraph implements Serializable {
+  private static final long             serialVersionUID = 1L;
+  private final Map<String,Equate>      equates = new LinkedHashMap<>();
+  private final Map<String,Set<String>> dependents = new HashMap<>();
+  private final Map<String,Object>      symbols = new HashMap<>();      // Values of the symbols used by equates
+  private final Set<String>             live = new LinkedHashSet<>();   // Equates defined in the current pass
+
+  interface Resolver {
+    /**
+     * Lookup the value of a symbol that is not an equate
+     * @param name symbol name
+     * @return Number value, or null if undefined
+     */
+    Object resolve (String name);
+  }
+
+  private static class Equate implements Serializable {
+    private static final long               serialVersionUID = 1L;
+    private final String                    expr;
+    private final Set<String>               deps;
+    private transient ExpressionParser.Token[] tokens;
+    private Integer                         value;
+
+    Equate (String expr) {
+      this.expr = expr;
+      tokens = ExpressionParser.parse(expr, null);
+      deps = ExpressionParser.getVariables(tokens);
+    }
+
+    ExpressionParser.Token[] getTokens () {
+      if (tokens == null) {
+        tokens = ExpressionParser.parse(expr, null);
+      }
+      return tokens;
+    }
+  }
+
+  /**
+   * Start a new assembly of the source.  Equates are only known once they're defined again in the new
+   * pass, but an equate redefined with the same expression keeps its cached value, unless a symbol it
+   * uses changes value.  The pass ends with evaluateAll().
+   */
+  void beginPass () {
+    live.clear();
+  }
+
+  /**
+   * Remove the equates which were not defined in the current pass and put the rest in source order, then
+   * invalidate the dependents of removed equates and of symbols whose value changed without being redefined
+   * in the pass (such as a deleted label)
+   */
+  private void endPass (Resolver resolver) {
+    Map<String,Equate> defined = new LinkedHashMap<>();
+    for (String name : live) {
+      defined.put(name, equates.get(name));
+    }
+    for (String name : equates.keySet()) {
+      if (!live.contains(name)) {
+        invalidate(name);
+      }
+    }
+    equates.clear();
+    equates.putAll(defined);
+    for (String name : new ArrayList<>(dependents.keySet())) {
+      if (!live.contains(name)) {
+        symbolChanged(name, resolver.resolve(name));
+      }
+    }
+    for (Set<String> users : dependents.values()) {
+      users.retainAll(live);
+    }
+    dependents.values().removeIf(Set::isEmpty);
+    symbols.keySet().retainAll(dependents.keySet());
+  }
+
+  boolean contains (String name) {
+    return live.contains(name);
+  }
+
+  Set<String> names () {
+    return Collections.unmodifiableSet(live);
+  }
+
+  /**
+   * Define, or redefine an equate.  Evaluation is deferred until the value is needed.
+   * @param name equate name
+   * @param expr expression text
+   * @return Set of equates whose cached values were invalidated (empty if expr is unchanged)
+   */
+  Set<String> define (String name, String expr) {
+    Equate old = equates.get(name);
+    if (old != null && old.expr.equals(expr)) {
+      live.add(name);
+      return Collections.emptySet();
+    }
+    Equate equ = new Equate(expr);
+    live.add(name);
+    if (old != null) {
+      for (String dep : old.deps) {
+        Set<String> users = dependents.get(dep);
+        if (users != null) {
+          users.remove(name);
+        }
+      }
+    }
+    for (String dep : equ.deps) {
+      dependents.computeIfAbsent(dep, k -> new LinkedHashSet<>()).add(name);
+    }
+    equates.put(name, equ);
+    return invalidate(name);
+  }
+
+  /**
+   * Notify the graph of the value of a non-equate symbol, such as a label, in the current pass
+   * @param name symbol name
+   * @param value symbol value
+   * @return Set of equates whose cached values were invalidated (empty unless value is not the value an
+   *         equate last used for name)
+   */
+  Set<String> symbolChanged (String name, Object value) {
+    if (!symbols.containsKey(name) || Objects.equals(symbols.get(name), value)) {
+      return Collections.emptySet();
+    }
+    symbols.put(name, value);
+    return invalidate(name);
+  }
+
+  /**
+   * Clear the cached value of name and of every equate that depends on it, directly or indirectly
+   */
+  private Set<String> invalidate (String name) {
+    Set<String> cleared = new LinkedHashSet<>();
+    Deque<String> work = new ArrayDeque<>();
+    work.add(name);
+    while (!work.isEmpty()) {
+      String item = work.removeFirst();
+      Equate equ = equates.get(item);
+      if (equ != null) {
+        if (!cleared.add(item)) {
+          continue;
+        }
+        equ.value = null;
+      }
+      Set<String> users = dependents.get(item);
+      if (users != null) {
+        work.addAll(users);
+      }
+    }
+    return cleared;
+  }
+
+  /**
+   * Check if a symbol, and if it's an equate, every symbol it uses, directly or indirectly, is defined in the
+   * current pass, so its value can be used before the pass ends
+   * @param name symbol name
+   * @param resolver supplies values for symbols that are not equates
+   * @return true if defined (a circular reference is treated as defined, as it's reported when evaluated)
+   */
+  boolean isDefined (String name, Resolver resolver) {
+    return isDefined(name, resolver, new HashSet<>());
+  }
+
+  private boolean isDefined (String name, Resolver resolver, Set<String> visited) {
+    if (!live.contains(name)) {
+      return resolver.resolve(name) != null;
+    }
+    if (visited.add(name)) {
+      for (String dep : equates.get(name).deps) {
+        if (!isDefined(dep, resolver, visited)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the value of an equate, evaluating it and any equates it depends on, if needed
+   * @param name equate name
+   * @param resolver supplies values for symbols that are not equates
+   * @return value of equate
+   * @throws IllegalStateException if the equate is undefined, circular, or can't be evaluated
+   */
+  int value (String name, Resolver resolver) {
+    return value(name, resolver, new LinkedHashSet<>());
+  }
+
+  private int value (String name, Resolver resolver, LinkedHashSet<String> visiting) {
+    Equate equ = live.contains(name) ? equates.get(name) : null;
+    if (equ == null) {
+      throw new IllegalStateException("Undefined symbol '" + name + "'");
+    }
+    if (equ.value != null) {
+      return equ.value;
+    }
+    if (!visiting.add(name)) {
+      StringBuilder buf = new StringBuilder("Circular equate: ");
+      boolean inCycle = false;
+      for (String item : visiting) {
+        inCycle |= item.equals(name);
+        if (inCycle) {
+          buf.append(item).append(" -> ");
+        }
+      }
+      buf.append(name);
+      throw new IllegalStateException(buf.toString());
+    }
+    try {
+      Map<String,Object> vals = new HashMap<>();
+      for (String dep : equ.deps) {
+        Object val = live.contains(dep) ? (Object) value(dep, resolver, visiting) : resolver.resolve(dep);
+        if (val == null) {
+          throw new IllegalStateException("Undefined symbol '" + dep + "'");
+        }
+        symbols.put(dep, val);
+        vals.put(dep, val);
+      }
+      Object ret = ExpressionParser.eval(equ.getTokens(), vals);
+      if (!(ret instanceof BigInteger)) {
+        throw new IllegalStateException("Equate '" + name + "' not a number");
+      }
+      equ.value = ((BigInteger) ret).intValue();
+      return equ.value;
+    } finally {
+      visiting.remove(name);
+    }
+  }
+
+  /**
+   * Build the variable bindings needed to evaluate expr, evaluating any equates it references
+   * @param expr parsed expression
+   * @param resolver supplies values for symbols that are not equates
+   * @return Map of variable name to value
+   * @throws IllegalStateException if expr uses an undefined symbol
+   */
+  Map<String,Object> bind (ExpressionParser.Token[] expr, Resolver resolver) {
+    Map<String,Object> vals = new HashMap<>();
+    for (String var : ExpressionParser.getVariables(expr)) {
+      Object val = live.contains(var) ? (Object) value(var, resolver) : resolver.resolve(var);
+      if (val == null) {
+        throw new IllegalStateException("Undefined symbol '" + var + "'");
+      }
+      vals.put(var, val);
+    }
+    return vals;
+  }
+
+  /**
+   * Compute the equates in topological order, so that each equate follows all the equates it uses
+   * @return List of equate names
+   * @throws IllegalStateException if the equates contain a circular reference
+   */
+  List<String> order () {
+    Map<String,Integer> inDegree = new HashMap<>();
+    for (Map.Entry<String,Equate> entry : equates.entrySet()) {
+      int count = 0;
+      for (String dep : entry.getValue().deps) {
+        if (equates.containsKey(dep)) {
+          count++;
+        }
+      }
+      inDegree.put(entry.getKey(), count);
+    }
+    Deque<String> ready = new ArrayDeque<>();
+    for (String name : equates.keySet()) {
+      if (inDegree.get(name) == 0) {
+        ready.add(name);
+      }
+    }
+    List<String> out = new ArrayList<>();
+    while (!ready.isEmpty()) {
+      String name = ready.removeFirst();
+      out.add(name);
+      Set<String> users = dependents.get(name);
+      if (users != null) {
+        for (String user : users) {
+          if (inDegree.merge(user, -1, Integer::sum) == 0) {
+            ready.add(user);
+          }
+        }
+      }
+    }
+    if (out.size() < equates.size()) {
+      Set<String> cycle = new TreeSet<>(equates.keySet());
+      cycle.removeAll(out);
+      throw new IllegalStateException("Circular equates: " + cycle);
+    }
+    return out;
+  }
+
+  /**
+   * Evaluate, in topological order, every equate whose cached value was invalidated.  This ends the pass,
+   * so equates which were not defined in it are removed from the graph.
+   * @param resolver supplies values for symbols that are not equates
+   * @return Map of equate name to the exception that prevented its evaluation (empty if no errors)
+   */
+  Map<String,Exception> evaluateAll (Resolver resolver) {
+    endPass(resolver);
+    Map<String,Exception> errors = new LinkedHashMap<>();
+    List<String> names;
+    try {
+      names = order();
+    } catch (IllegalStateException ex) {
+      // Fall back to source order so the equates outside the cycle are still evaluated
+      names = new ArrayList<>(equates.keySet());
+    }
+    for (String name : names) {
+      if (equates.get(name).value == null) {
+        try {
+          value(name, resolver);
+        } catch (Exception ex) {
+          errors.put(name, ex);
+        }
+      }
+    }
+    return errors;
+  }
+}
@@ -0,0 +1,564 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ *  Compiles integer-only ExpressionParser expressions into JVM bytecode for a hidden class that
+ *  implements ExpressionParser.LongEval, so hot expressions run as JIT-compiled code rather than
+ *  through the BigInteger interpreter.  Each operator is implemented by one of the static methods
+ *  below, which either return the same result as the interpreter or throw ArithmeticException
+ *  (overflow, or divide by zero), in which case the caller falls back to the interpreter.
+ *
+ *  Note: requires Java 15, or later for MethodHandles.Lookup.defineHiddenClass().  On earlier
+ *  versions compile() returns null and expressions continue to be interpreted, although interpret()
+ *  can still provide a LongEval that steps through the expression using a long[] stack.
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class ExpressionCompiler {
+  private static final String      CLASS_NAME = "ExpressionCompiler$Expr";
+  private static final String      HELPER = "ExpressionCompiler";
+  private static final String      LONG_EVAL = "ExpressionParser$LongEval";
+  private static final Set<String> binaryOps = new HashSet<>(Arrays.asList(
+      "+", "-", "*", "/", "%", "<<", ">>", ">>>", "&", "|", "^"));
+  private static final Method      defineHidden;
+  private static final Object      noOptions;
+
+  static {
+    Method method = null;
+    Object options = null;
+    try {
+      Class<?> optClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      options = Array.newInstance(optClass, 0);
+      method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass());
+    } catch (ReflectiveOperationException ex) {
+      // Hidden classes not supported by this JVM
+    }
+    defineHidden = method;
+    noOptions = options;
+  }
+
+  /**
+   * @return true if this JVM supports hidden classes
+   */
+  static boolean isSupported () {
+    return defineHidden != null;
+  }
+
+  /**
+   * Check if expr only uses operators and functions that can be computed with long arithmetic
+   * @param expr Token[] array representing a postfix expression
+   * @return true if compile() can translate expr
+   */
+  static boolean canCompile (ExpressionParser.Token[] expr) {
+    int depth = 0;
+    for (ExpressionParser.Token tok : expr) {
+      String val = tok.getValue();
+      switch (tok.getType()) {
+        case ExpressionParser.Token.EXP:
+          break;
+        case ExpressionParser.Token.VAL:
+          if (parseLong(val) == null) {
+            return false;
+          }
+          depth++;
+          break;
+        case ExpressionParser.Token.VAR:
+          if ("true".equals(val) || "false".equals(val) || "null".equals(val)) {
+            return false;
+          }
+          depth++;
+          break;
+        case ExpressionParser.Token.OP:
+          if ("!".equals(val)) {
+            if (depth < 1) {
+              return false;
+            }
+          } else if (binaryOps.contains(val)) {
+            if (depth < 2) {
+              return false;
+            }
+            depth--;
+          } else {
+            return false;
+          }
+          break;
+        case ExpressionParser.Token.FNC:
+          switch (val.toLowerCase()) {
+            case "max":
+            case "min":
+              if (depth < 2) {
+                return false;
+              }
+              depth--;
+              break;
+            case "high":
+            case "low":
+            case "abs":
+              if (depth < 1) {
+                return false;
+              }
+              break;
+            default:
+              return false;
+          }
+          break;
+        default:
+          return false;
+      }
+    }
+    return depth == 1;
+  }
+
+  /**
+   * Parse an expression constant in the same way as ExpressionParser.eval()
+   * @return Long value, or null if the constant is invalid, or doesn't fit in a long
+   */
+  static Long parseLong (String val) {
+    try {
+      BigInteger big = val.startsWith("0x") ? new BigInteger(val.substring(2), 16) : new BigInteger(val);
+      return big.bitLength() < 64 ? big.longValue() : null;
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Translate expr into a hidden class and return an instance of it
+   * @param expr Token[] array representing a postfix expression (must pass canCompile())
+   * @param vars variable names, in the order their values will be supplied to LongEval.eval()
+   * @return LongEval instance, or null if hidden classes are not supported
+   */
+  static ExpressionParser.LongEval compile (ExpressionParser.Token[] expr, String[] vars) {
+    if (defineHidden == null) {
+      return null;
+    }
+    try {
+      byte[] classFile = generate(expr, vars);
+      MethodHandles.Lookup lookup = (MethodHandles.Lookup) defineHidden.invoke(MethodHandles.lookup(), classFile, true, noOptions);
+      return (ExpressionParser.LongEval) lookup.lookupClass().getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | IOException ex) {
+      throw new IllegalStateException("Unable to compile expression", ex);
+    }
+  }
+
+  /**
+   * Build a LongEval for expr which interprets it using a long[] stack, rather than BigInteger objects
+   * @param expr Token[] array representing a postfix expression (must pass canCompile())
+   * @param vars variable names, in the order their values will be supplied to LongEval.eval()
+   * @return LongEval instance
+   */
+  static ExpressionParser.LongEval interpret (ExpressionParser.Token[] expr, String[] vars) {
+    return new LongInterpreter(expr, vars);
+  }
+
+  private static class LongInterpreter implements ExpressionParser.LongEval {
+    private static final int  CONST = 0, VAR = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, MOD = 6, SHL = 7, SHR = 8,
+                              USHR = 9, AND = 10, OR = 11, XOR = 12, NOT = 13, MAX = 14, MIN = 15, HIGH = 16,
+                              LOW = 17, ABS = 18;
+    private static final Map<String,Integer> codes = new HashMap<>();
+    private final int[]       ops;
+    private final long[]      args;
+    private final int         maxDepth;
+
+    static {
+      String[] names = {"+", "-", "*", "/", "%", "<<", ">>", ">>>", "&", "|", "^", "!",
+                        "max", "min", "high", "low", "abs"};
+      for (int ii = 0; ii < names.length; ii++) {
+        codes.put(names[ii], ADD + ii);
+      }
+    }
+
+    LongInterpreter (ExpressionParser.Token[] expr, String[] vars) {
+      List<String> varList = Arrays.asList(vars);
+      int[] ops = new int[expr.length];
+      long[] args = new long[expr.length];
+      int count = 0, depth = 0, maxDepth = 0;
+      for (ExpressionParser.Token tok : expr) {
+        String val = tok.getValue();
+        switch (tok.getType()) {
+          case ExpressionParser.Token.VAL:
+            ops[count] = CONST;
+            args[count++] = parseLong(val);
+            depth++;
+            break;
+          case ExpressionParser.Token.VAR:
+            ops[count] = VAR;
+            args[count++] = varList.indexOf(val);
+            depth++;
+            break;
+          case ExpressionParser.Token.OP:
+          case ExpressionParser.Token.FNC:
+            int code = codes.get(tok.getType() == ExpressionParser.Token.FNC ? val.toLowerCase() : val);
+            ops[count++] = code;
+            if (code != NOT && code < HIGH) {
+              depth--;
+            }
+            break;
+        }
+        maxDepth = Math.max(maxDepth, depth);
+      }
+      this.ops = Arrays.copyOf(ops, count);
+      this.args = Arrays.copyOf(args, count);
+      this.maxDepth = maxDepth;
+    }
+
+    public long eval (long[] vars) {
+      long[] stack = new long[maxDepth];
+      int sp = 0;
+      for (int ii = 0; ii < ops.length; ii++) {
+        switch (ops[ii]) {
+          case CONST: stack[sp++] = args[ii];                                  break;
+          case VAR:   stack[sp++] = vars[(int) args[ii]];                      break;
+          case ADD:   sp--; stack[sp - 1] = add(stack[sp - 1], stack[sp]);     break;
+          case SUB:   sp--; stack[sp - 1] = sub(stack[sp - 1], stack[sp]);     break;
+          case MUL:   sp--; stack[sp - 1] = mul(stack[sp - 1], stack[sp]);     break;
+          case DIV:   sp--; stack[sp - 1] = div(stack[sp - 1], stack[sp]);     break;
+          case MOD:   sp--; stack[sp - 1] = mod(stack[sp - 1], stack[sp]);     break;
+          case SHL:   sp--; stack[sp - 1] = shl(stack[sp - 1], stack[sp]);     break;
+          case SHR:   sp--; stack[sp - 1] = shr(stack[sp - 1], stack[sp]);     break;
+          case USHR:  sp--; stack[sp - 1] = ushr(stack[sp - 1], stack[sp]);    break;
+          case AND:   sp--; stack[sp - 1] &= stack[sp];                        break;
+          case OR:    sp--; stack[sp - 1] |= stack[sp];                        break;
+          case XOR:   sp--; stack[sp - 1] ^= stack[sp];                        break;
+          case MAX:   sp--; stack[sp - 1] = max(stack[sp - 1], stack[sp]);     break;
+          case MIN:   sp--; stack[sp - 1] = min(stack[sp - 1], stack[sp]);     break;
+          case NOT:   stack[sp - 1] = ~stack[sp - 1];                          break;
+          case HIGH:  stack[sp - 1] = high(stack[sp - 1]);                     break;
+          case LOW:   stack[sp - 1] &= 0xFF;                                   break;
+          case ABS:   stack[sp - 1] = abs(stack[sp - 1]);                      break;
+        }
+      }
+      return stack[0];
+    }
+  }
+
+  /*
+   *  Class file generation
+   */
+
+  private static byte[] generate (ExpressionParser.Token[] expr, String[] vars) throws IOException {
+    ConstantPool pool = new ConstantPool();
+    int thisClass = pool.classRef(CLASS_NAME);
+    int superClass = pool.classRef("java/lang/Object");
+    int iface = pool.classRef(LONG_EVAL);
+    int objInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+    Map<String,Integer> varIdx = new HashMap<>();
+    for (int ii = 0; ii < vars.length; ii++) {
+      varIdx.put(vars[ii], ii);
+    }
+    // Generate body of "long eval (long[] vars)"
+    ByteArrayOutputStream code = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(code);
+    int depth = 0, maxDepth = 0;
+    for (ExpressionParser.Token tok : expr) {
+      String val = tok.getValue();
+      switch (tok.getType()) {
+        case ExpressionParser.Token.VAL:
+          pushLong(body, pool, parseLong(val));
+          depth++;
+          break;
+        case ExpressionParser.Token.VAR:
+          int idx = varIdx.get(val);
+          body.writeByte(0x2B);                           // aload_1
+          if (idx <= 5) {
+            body.writeByte(0x03 + idx);                   // iconst_<n>
+          } else if (idx <= Byte.MAX_VALUE) {
+            body.writeByte(0x10);                         // bipush
+            body.writeByte(idx);
+          } else {
+            body.writeByte(0x11);                         // sipush
+            body.writeShort(idx);
+          }
+          body.writeByte(0x2F);                           // laload
+          maxDepth = Math.max(maxDepth, depth + 1);       // array ref and index use 2 words
+          depth++;
+          break;
+        case ExpressionParser.Token.OP:
+          switch (val) {
+            case "&":
+              body.writeByte(0x7F);                       // land
+              depth--;
+              break;
+            case "|":
+              body.writeByte(0x81);                       // lor
+              depth--;
+              break;
+            case "^":
+              body.writeByte(0x83);                       // lxor
+              depth--;
+              break;
+            case "!":
+              pushLong(body, pool, -1L);
+              body.writeByte(0x83);                       // lxor
+              maxDepth = Math.max(maxDepth, depth + 1);
+              break;
+            default:
+              invokeHelper(body, pool, helperName(val), "(JJ)J");
+              depth--;
+              break;
+          }
+          break;
+        case ExpressionParser.Token.FNC:
+          String func = val.toLowerCase();
+          if ("max".equals(func) || "min".equals(func)) {
+            invokeHelper(body, pool, func, "(JJ)J");
+            depth--;
+          } else if ("low".equals(func)) {
+            pushLong(body, pool, 0xFFL);
+            body.writeByte(0x7F);                         // land
+            maxDepth = Math.max(maxDepth, depth + 1);
+          } else {
+            invokeHelper(body, pool, func, "(J)J");
+          }
+          break;
+      }
+      maxDepth = Math.max(maxDepth, depth);
+    }
+    body.writeByte(0xAD);                                 // lreturn
+    body.flush();
+    int codeAttr = pool.utf8("Code");
+    int initName = pool.utf8("<init>");
+    int initDesc = pool.utf8("()V");
+    int evalName = pool.utf8("eval");
+    int evalDesc = pool.utf8("([J)J");
+    // Write class file
+    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bOut);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);                                    // minor version
+    out.writeShort(52);                                   // major version (Java 8, so no StackMapTable needed)
+    pool.write(out);
+    out.writeShort(0x0031);                               // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+    out.writeShort(thisClass);
+    out.writeShort(superClass);
+    out.writeShort(1);                                    // interfaces
+    out.writeShort(iface);
+    out.writeShort(0);                                    // fields
+    out.writeShort(2);                                    // methods
+    // public <init> () { super(); }
+    out.writeShort(0x0001);
+    out.writeShort(initName);
+    out.writeShort(initDesc);
+    out.writeShort(1);
+    byte[] init = {0x2A, (byte) 0xB7, (byte) (objInit >> 8), (byte) objInit, (byte) 0xB1};
+    writeCode(out, codeAttr, 1, 1, init);
+    // public long eval (long[] vars)
+    out.writeShort(0x0001);
+    out.writeShort(evalName);
+    out.writeShort(evalDesc);
+    out.writeShort(1);
+    writeCode(out, codeAttr, maxDepth * 2 + 2, 2, code.toByteArray());
+    out.writeShort(0);                                    // class attributes
+    out.flush();
+    return bOut.toByteArray();
+  }
+
+  private static void writeCode (DataOutputStream out, int codeAttr, int maxStack, int maxLocals, byte[] code) throws IOException {
+    out.writeShort(codeAttr);
+    out.writeInt(12 + code.length);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(code.length);
+    out.write(code);
+    out.writeShort(0);                                    // exception table
+    out.writeShort(0);                                    // attributes
+  }
+
+  private static void pushLong (DataOutputStream out, ConstantPool pool, long val) throws IOException {
+    if (val == 0 || val == 1) {
+      out.writeByte(0x09 + (int) val);                    // lconst_<n>
+    } else {
+      out.writeByte(0x14);                                // ldc2_w
+      out.writeShort(pool.longConst(val));
+    }
+  }
+
+  private static void invokeHelper (DataOutputStream out, ConstantPool pool, String name, String desc) throws IOException {
+    out.writeByte(0xB8);                                  // invokestatic
+    out.writeShort(pool.methodRef(HELPER, name, desc));
+  }
+
+  private static String helperName (String op) {
+    switch (op) {
+      case "+":   return "add";
+      case "-":   return "sub";
+      case "*":   return "mul";
+      case "/":   return "div";
+      case "%":   return "mod";
+      case "<<":  return "shl";
+      case ">>":  return "shr";
+      case ">>>": return "ushr";
+      default:
+        throw new IllegalStateException("ExpressionCompiler unknown operator " + op);
+    }
+  }
+
+  private static class ConstantPool {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream      out = new DataOutputStream(bytes);
+    private final Map<String,Integer>   entries = new HashMap<>();
+    private int                         count = 1;
+
+    int utf8 (String val) throws IOException {
+      Integer idx = entries.get("U:" + val);
+      if (idx == null) {
+        out.writeByte(1);
+        out.writeUTF(val);
+        entries.put("U:" + val, idx = count++);
+      }
+      return idx;
+    }
+
+    int classRef (String name) throws IOException {
+      Integer idx = entries.get("C:" + name);
+      if (idx == null) {
+        int nameIdx = utf8(name);
+        out.writeByte(7);
+        out.writeShort(nameIdx);
+        entries.put("C:" + name, idx = count++);
+      }
+      return idx;
+    }
+
+    int methodRef (String owner, String name, String desc) throws IOException {
+      String key = "M:" + owner + "." + name + desc;
+      Integer idx = entries.get(key);
+      if (idx == null) {
+        int ownerIdx = classRef(owner);
+        int nameIdx = utf8(name);
+        int descIdx = utf8(desc);
+        out.writeByte(12);                                // NameAndType
+        out.writeShort(nameIdx);
+        out.writeShort(descIdx);
+        int natIdx = count++;
+        out.writeByte(10);                                // Methodref
+        out.writeShort(ownerIdx);
+        out.writeShort(natIdx);
+        entries.put(key, idx = count++);
+      }
+      return idx;
+    }
+
+    int longConst (long val) throws IOException {
+      Integer idx = entries.get("J:" + val);
+      if (idx == null) {
+        out.writeByte(5);
+        out.writeLong(val);
+        entries.put("J:" + val, idx = count);
+        count += 2;                                       // long constants use two slots
+      }
+      return idx;
+    }
+
+    void write (DataOutputStream dOut) throws IOException {
+      out.flush();
+      dOut.writeShort(count);
+      dOut.write(bytes.toByteArray());
+    }
+  }
+
+  /*
+   *  Operator implementations called by compiled code.  Each one matches the BigInteger result
+   *  computed by ExpressionParser.eval(), or throws ArithmeticException if the result doesn't fit
+   */
+
+  static long add (long lArg, long rArg) {
+    return Math.addExact(lArg, rArg);
+  }
+
+  static long sub (long lArg, long rArg) {
+    return Math.subtractExact(lArg, rArg);
+  }
+
+  static long mul (long lArg, long rArg) {
+    return Math.multiplyExact(lArg, rArg);
+  }
+
+  static long div (long lArg, long rArg) {
+    if (lArg == Long.MIN_VALUE && rArg == -1) {
+      throw new ArithmeticException("long overflow");
+    }
+    return lArg / rArg;
+  }
+
+  // BigInteger.mod() requires a positive modulus and always returns a non negative result
+  static long mod (long lArg, long rArg) {
+    if (rArg <= 0) {
+      throw new ArithmeticException("modulus not positive");
+    }
+    return Math.floorMod(lArg, rArg);
+  }
+
+  // BigInteger.shiftLeft() (shift count is truncated to an int, as with BigInteger.intValue())
+  static long shl (long lArg, long rArg) {
+    int shift = (int) rArg;
+    if (shift < 0) {
+      return floorShift(lArg, -(long) shift);
+    }
+    if (lArg == 0) {
+      return 0;
+    }
+    if (shift >= 63) {
+      throw new ArithmeticException("long overflow");
+    }
+    long ret = lArg << shift;
+    if (ret >> shift != lArg) {
+      throw new ArithmeticException("long overflow");
+    }
+    return ret;
+  }
+
+  // ExpressionParser implements ">>" as divide by 2^shift, which rounds toward zero
+  static long shr (long lArg, long rArg) {
+    int shift = (int) rArg;
+    if (shift < 0) {
+      throw new ArithmeticException("BigInteger divide by zero");
+    }
+    if (shift >= 64) {
+      return 0;
+    }
+    if (shift == 63) {
+      return lArg == Long.MIN_VALUE ? -1 : 0;
+    }
+    return lArg / (1L << shift);
+  }
+
+  // BigInteger.shiftRight(), which rounds toward negative infinity
+  static long ushr (long lArg, long rArg) {
+    int shift = (int) rArg;
+    if (shift == Integer.MIN_VALUE) {
+      throw new ArithmeticException("shift out of range");
+    }
+    return shift < 0 ? shl(lArg, -shift) : floorShift(lArg, shift);
+  }
+
+  private static long floorShift (long val, long shift) {
+    return shift >= 63 ? (val < 0 ? -1 : 0) : val >> shift;
+  }
+
+  static long max (long arg2, long arg) {
+    return Math.max(arg2, arg);
+  }
+
+  static long min (long arg2, long arg) {
+    return Math.min(arg2, arg);
+  }
+
+  // BigInteger.divide(256).and(255)
+  static long high (long arg) {
+    return (arg / 256) & 0xFF;
+  }
+
+  static long abs (long arg) {
+    if (arg == Long.MIN_VALUE) {
+      throw new ArithmeticException("long overflow");
+    }
+    return Math.abs(arg);
+  }
+}
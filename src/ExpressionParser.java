@@ -1,5 +1,7 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.math.*;
 
 /**
@@ -16,89 +18,105 @@ import java.math.*;
  *    7. If the end of the input is found, pop all operators and append them
  *       to the output List.
  *
+ *  Concurrency: ExpressionParser is thread safe and reentrant.  The operator and function tables
+ *  are immutable after class initialization, Token objects are immutable, and parse() and eval()
+ *  keep all their working state in local variables.  So, the Token[] array returned by parse()
+ *  can be shared and evaluated by any number of threads at once, provided callers do not modify
+ *  the array, or any Map passed to eval() while that call is in progress.  External Function
+ *  implementations passed to parse() or eval() must also be thread safe if they are shared.
+ *
  *  Author: Wayne Holder, 2004-2019
  *  License: MIT (https://opensource.org/licenses/MIT)
  */
 
 public class ExpressionParser {
-  private static final Null   NULL = new Null();
-  private static BigInteger   INT256 = new BigInteger("256");
-  private static BigInteger   INT255 = new BigInteger("255");
-  private static Map<String, Integer> ops = new HashMap<>();
-  private static Map<String, Function> iFuncs = new HashMap<>();
+  private static final Null                  NULL = new Null();
+  private static final BigInteger            INT256 = BigInteger.valueOf(256);
+  private static final BigInteger            INT255 = BigInteger.valueOf(255);
+  private static final Map<String, Integer>  ops;
+  private static final Set<String>           iFuncs;
+  private static volatile int                compileThreshold = 100;
 
   static {
+    Map<String, Integer> opMap = new HashMap<>();
     // Operator precedence (1 is lowest, 10 is highest)
-    ops.put("|",  1);       // OR
-    ops.put("||", 1);       // shortcut OR
-    ops.put("&",  1);       // AND
-    ops.put("&&", 1);       // shortcut AND
-    ops.put("^",  1);       // XOR
+    opMap.put("|",  1);       // OR
+    opMap.put("||", 1);       // shortcut OR
+    opMap.put("&",  1);       // AND
+    opMap.put("&&", 1);       // shortcut AND
+    opMap.put("^",  1);       // XOR
 
-    ops.put("S&", 2);       // shortcut OR operators (used internally)
-    ops.put("S|", 2);       // shortcut AND operators (used internally)
+    opMap.put("S&", 2);       // shortcut OR operators (used internally)
+    opMap.put("S|", 2);       // shortcut AND operators (used internally)
 
-    ops.put("==", 3);       // Equals
-    ops.put("!=", 3);       // Not Equals
+    opMap.put("==", 3);       // Equals
+    opMap.put("!=", 3);       // Not Equals
 
-    ops.put("<",  4);       // Less than
-    ops.put("<=", 4);       // Less than, or equal to
-    ops.put(">",  4);       // Greater than
-    ops.put(">=", 4);       // Greater than, or equal to
+    opMap.put("<",  4);       // Less than
+    opMap.put("<=", 4);       // Less than, or equal to
+    opMap.put(">",  4);       // Greater than
+    opMap.put(">=", 4);       // Greater than, or equal to
 
-    ops.put("<<", 5);       // Signed Left shift
-    ops.put(">>", 5);       // Signed Right shift
-    ops.put(">>>", 5);      // Unsigned Right shift
+    opMap.put("<<", 5);       // Signed Left shift
+    opMap.put(">>", 5);       // Signed Right shift
+    opMap.put(">>>", 5);      // Unsigned Right shift
 
-    ops.put("-",  6);       // Subtract, or minus sign
-    ops.put("+",  6);       // Subtract, or positive sign, or String concatenation
+    opMap.put("-",  6);       // Subtract, or minus sign
+    opMap.put("+",  6);       // Subtract, or positive sign, or String concatenation
 
-    ops.put("/",  7);       // Divide
-    ops.put("*",  7);       // Multiply
-    ops.put("%",  7);       // Modulo
+    opMap.put("/",  7);       // Divide
+    opMap.put("*",  7);       // Multiply
+    opMap.put("%",  7);       // Modulo
 
-    ops.put("!",  8);       // Logical NOT
+    opMap.put("!",  8);       // Logical NOT
 
-    ops.put("(",  9);       // Left, opening parenthesis
-    ops.put(")",  9);       // Right, closing parenthesis
+    opMap.put("(",  9);       // Left, opening parenthesis
+    opMap.put(")",  9);       // Right, closing parenthesis
 
-    ops.put("$$", 10);    // Function call
+    opMap.put("$$", 10);    // Function call
+    ops = Collections.unmodifiableMap(opMap);
     // Define functions
-    iFuncs.put("max", null);  // Maximum value
-    iFuncs.put("min", null);  // Minimum value
-    iFuncs.put("high", null); // Select upper byte of 16 bit word
-    iFuncs.put("low", null);  // Select lower byte of 16 bit word
-    iFuncs.put("abs", null);  // Absolute value
+    Set<String> funcSet = new HashSet<>();
+    funcSet.add("max");       // Maximum value
+    funcSet.add("min");       // Minimum value
+    funcSet.add("high");      // Select upper byte of 16 bit word
+    funcSet.add("low");       // Select lower byte of 16 bit word
+    funcSet.add("abs");       // Absolute value
+    iFuncs = Collections.unmodifiableSet(funcSet);
   }
 
   public static class Token {
-    private static final int VAR = 0;
-    private static final int VAL = 1;
-    private static final int STR = 2;
-    private static final int OP  = 3;
-    private static final int FNC = 4;
-    private static final int CMA = 5;
-    private static final int EXP = 6;
-    private String          val;
-    private int             shortcutId = -1;
-    private int             type;
-    private int             prec;
-    private boolean         isShortcut;
+    static final int VAR = 0;
+    static final int VAL = 1;
+    static final int STR = 2;
+    static final int OP  = 3;
+    static final int FNC = 4;
+    static final int CMA = 5;
+    static final int EXP = 6;
+    private final String    val;
+    private final int       shortcutId;
+    private final int       type;
+    private final int       prec;
+    private final boolean   isShortcut;
 
     private Token (String val, int type) {
-      this.val = val;
-      this.type = type;
-      if (type == OP) {
-        prec = ops.get(val);
-      } else if (type == FNC) {
-        prec = ops.get("$$");
-        isShortcut = val.equals("SHORT_T") | val.equals("SHORT_F");
-      }
+      this(val, type, -1);
     }
 
     private Token (String val, int type, int shortcutId) {
-      this(val, type);
+      this.val = val;
+      this.type = type;
       this.shortcutId = shortcutId;
+      prec = type == OP ? ops.get(val) : type == FNC ? ops.get("$$") : 0;
+      isShortcut = type == FNC && (val.equals("SHORT_T") | val.equals("SHORT_F"));
+    }
+
+    String getValue () {
+      return val;
+    }
+
+    int getType () {
+      return type;
     }
 
     public String toString () {
@@ -110,6 +128,198 @@ public class ExpressionParser {
     Object call (Object lArg, LinkedList<Object> stack);
   }
 
+  /**
+   * Evaluates an integer expression using long arithmetic.  Variable values are passed in an array in
+   * the order given by Expression.getVariables().  Throws ArithmeticException if a result overflows.
+   */
+  interface LongEval {
+    long eval (long[] vars);
+  }
+
+  /**
+   * Sets the number of times an Expression must be evaluated before it's compiled into a hidden class
+   * @param threshold evaluation count, or 0 to disable compilation
+   */
+  static void setCompileThreshold (int threshold) {
+    compileThreshold = threshold;
+  }
+
+  /**
+   * Parse infix expression into an Expression object which, if it only uses integer operators and
+   * functions, is compiled into a hidden class after it has been evaluated compileThreshold times.
+   * @param in infix expression
+   * @param eFuncs Map of external functions (may be null)
+   * @return Expression object
+   */
+  static Expression compile (String in, Map<String,Function> eFuncs) {
+    return new Expression(parse(in, eFuncs));
+  }
+
+  /**
+   * A parsed expression that counts its evaluations and, once it becomes hot, switches to a compiled
+   * LongEval version.  The interpreter is still used whenever a variable's value is not an integer that
+   * fits in a long, or when the long computation overflows, so results are identical either way.
+   * Expression objects are thread safe.
+   */
+  static class Expression {
+    private final Token[]         expr;
+    private final String[]        vars;
+    private volatile boolean      canCompile;
+    private final AtomicInteger   evalCount = new AtomicInteger();
+    private volatile LongEval     compiled;
+    private volatile LongEval     longEval;
+
+    private Expression (Token[] expr) {
+      this.expr = expr;
+      vars = ExpressionParser.getVariables(expr).toArray(new String[0]);
+      canCompile = ExpressionCompiler.canCompile(expr);
+    }
+
+    Token[] getTokens () {
+      return expr;
+    }
+
+    /**
+     * @return Names of the variables used by this expression in the order expected by LongEval.eval()
+     */
+    String[] getVariables () {
+      return vars.clone();
+    }
+
+    boolean isCompiled () {
+      return compiled != null;
+    }
+
+    /**
+     * Get compiled version of this expression, compiling it now, if needed
+     * @return LongEval, or null if the expression can't be compiled
+     */
+    LongEval getCompiled () {
+      LongEval fn = compiled;
+      if (fn == null && canCompile) {
+        synchronized (this) {
+          if ((fn = compiled) == null && canCompile) {
+            try {
+              compiled = fn = ExpressionCompiler.compile(expr, vars);
+            } catch (IllegalStateException | LinkageError ex) {
+              // Expected if the JVM won't define the class, so stay with the interpreter
+            }
+            canCompile = fn != null;
+          }
+        }
+      }
+      return fn;
+    }
+
+    /**
+     * Evaluate this expression once for each row of a columnar set of variable bindings.  Integer-only
+     * expressions are evaluated by the compiled (or long interpreted) form, with no boxing, and the
+     * BigInteger interpreter is only used for rows where the long computation overflows.
+     * @param columns Map of variable name to an array of values (one value per row, all the same length)
+     * @return long[] array of results, one per row
+     * @throws IllegalArgumentException if a variable has no column, or the columns differ in length
+     * @throws IllegalStateException if a result can't be evaluated, or isn't an integer that fits in a long
+     */
+    long[] evalBatch (Map<String,long[]> columns) {
+      long[][] cols = new long[vars.length][];
+      int rows = -1;
+      for (int ii = 0; ii < vars.length; ii++) {
+        cols[ii] = columns.get(vars[ii]);
+        if (cols[ii] == null) {
+          throw new IllegalArgumentException("Expression.evalBatch() no values for variable '" + vars[ii] + "'");
+        }
+        if (rows >= 0 && cols[ii].length != rows) {
+          throw new IllegalArgumentException("Expression.evalBatch() column '" + vars[ii] + "' length is " +
+                                             cols[ii].length + ", expected " + rows);
+        }
+        rows = cols[ii].length;
+      }
+      if (rows < 0) {
+        // No variables, so result is the same for every row
+        for (long[] col : columns.values()) {
+          rows = Math.max(rows, col.length);
+        }
+        rows = Math.max(rows, 0);
+      }
+      long[] results = new long[rows];
+      long[] args = new long[vars.length];
+      LongEval fn = getBatchEval();
+      Map<String,Object> vals = null;
+      for (int row = 0; row < rows; row++) {
+        for (int ii = 0; ii < cols.length; ii++) {
+          args[ii] = cols[ii][row];
+        }
+        if (fn != null) {
+          try {
+            results[row] = fn.eval(args);
+            continue;
+          } catch (ArithmeticException ex) {
+            // Fall through and let the interpreter handle this row
+          }
+        }
+        if (vals == null) {
+          vals = new HashMap<>();
+        }
+        for (int ii = 0; ii < vars.length; ii++) {
+          vals.put(vars[ii], BigInteger.valueOf(args[ii]));
+        }
+        Object ret = ExpressionParser.eval(expr, vals);
+        if (!(ret instanceof BigInteger) || ((BigInteger) ret).bitLength() >= 64) {
+          throw new IllegalStateException("Expression.evalBatch() row " + row + " result " + ret + " is not a long");
+        }
+        results[row] = ((BigInteger) ret).longValue();
+      }
+      return results;
+    }
+
+    private LongEval getBatchEval () {
+      LongEval fn = getCompiled();
+      if (fn == null && canCompile) {
+        if ((fn = longEval) == null) {
+          longEval = fn = ExpressionCompiler.interpret(expr, vars);
+        }
+      }
+      return fn;
+    }
+
+    /**
+     * Evaluate this expression using the variable values provided in the vals Map
+     * @param vals Map that supplies values for all expression variables
+     * @return Object containing result (Boolean, String or BigInteger)
+     */
+    Object eval (Map<String,Object> vals) {
+      LongEval fn = compiled;
+      if (fn == null && canCompile) {
+        int threshold = compileThreshold;
+        if (threshold > 0 && evalCount.incrementAndGet() == threshold) {
+          fn = getCompiled();
+        }
+      }
+      if (fn != null) {
+        long[] args = new long[vars.length];
+        boolean isLong = true;
+        for (int ii = 0; ii < vars.length && isLong; ii++) {
+          Object val = vals.get(vars[ii]);
+          if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte) {
+            args[ii] = ((Number) val).longValue();
+          } else if (val instanceof BigInteger && ((BigInteger) val).bitLength() < 64) {
+            args[ii] = ((BigInteger) val).longValue();
+          } else {
+            isLong = false;
+          }
+        }
+        if (isLong) {
+          try {
+            return BigInteger.valueOf(fn.eval(args));
+          } catch (ArithmeticException ex) {
+            // Result doesn't fit in a long, or divide by zero, so let the interpreter handle it
+          }
+        }
+      }
+      return ExpressionParser.eval(expr, vals);
+    }
+  }
+
   /**
    * Parse infix into List in postfix order. Note: Strings like "TEST" are treated as
    * variable names, and ones with surrounding ' marks, such as "'TEST'" are treated as
@@ -188,10 +398,6 @@ public class ExpressionParser {
    * @return Token[] array in postfix form
    */
   private static Token[] tokenize (String in, Map<String,Function> eFuncs) {
-    Map<String, Function> funcs = new HashMap<>(iFuncs);
-    if (eFuncs != null) {
-      funcs.putAll(eFuncs);
-    }
     int id = 0;
     in = condenseWhitespace(in) + ' ';    // Trailing space is kluge to for eval of trailing Number or Variable Name
     List<Token> out = new ArrayList<>();
@@ -254,7 +460,9 @@ public class ExpressionParser {
             acc.append(cc);
           } else {
             String name = acc.toString();
-            out.add(new Token(name, funcs.containsKey(name.toLowerCase()) ? Token.FNC : Token.VAR ));
+            String lName = name.toLowerCase();
+            boolean isFunc = iFuncs.contains(lName) || (eFuncs != null && eFuncs.containsKey(lName));
+            out.add(new Token(name, isFunc ? Token.FNC : Token.VAR ));
             acc = new StringBuilder();
             state = 0;
             ii--;
@@ -324,6 +532,22 @@ public class ExpressionParser {
     return buf.toString().trim();
   }
 
+  /**
+   * Get the names of all the variables referenced by a parsed expression (excludes the
+   * reserved names "true", "false" and "null")
+   * @param expr Token[] array representing a postfix expression
+   * @return Set of variable names in the order they first appear in expr
+   */
+  static Set<String> getVariables (Token[] expr) {
+    Set<String> vars = new LinkedHashSet<>();
+    for (Token tok : expr) {
+      if (tok.type == Token.VAR && !"true".equals(tok.val) && !"false".equals(tok.val) && !"null".equals(tok.val)) {
+        vars.add(tok.val);
+      }
+    }
+    return vars;
+  }
+
   /**
    * Convert String[] into a String where each item is separated by a common String separator
    * @param tokens Token array of values that support toString() call
@@ -753,9 +977,195 @@ public class ExpressionParser {
     return err;
   }
 
+  /**
+   * Checks the concurrency contract by having many threads evaluate a shared set of parsed expressions
+   * (and parse them again) at the same time, and comparing every result against the single thread result
+   * @param out PrintStream for error messages
+   * @return true if any error was detected
+   */
+  static boolean doConcurrencyTests (PrintStream out) {
+    String[] exprs = {
+        "(A + B) * 3 - high(C)",
+        "max(A, B) << 2",
+        "low(C) ^ (A | B)",
+        "A > B || C == 0x1234",
+        "V3 == null  ||  V3 == 'TEST'",
+        "'X' + A == 'X10'",
+        "(0 - C) >> 3",
+        "abs(A - B) % 7",
+    };
+    Map<String,Object> vals = new HashMap<>();
+    vals.put("A", new BigInteger("10"));
+    vals.put("B", new BigInteger("20"));
+    vals.put("C", new BigInteger("1234", 16));
+    vals.put("V3", null);
+    Token[][] parsed = new Token[exprs.length][];
+    Object[] expected = new Object[exprs.length];
+    for (int ii = 0; ii < exprs.length; ii++) {
+      parsed[ii] = parse(exprs[ii], null);
+      expected[ii] = eval(parsed[ii], vals);
+    }
+    int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CountDownLatch startGate = new CountDownLatch(1);
+    AtomicInteger failures = new AtomicInteger();
+    List<Future<?>> tasks = new ArrayList<>();
+    for (int tt = 0; tt < threads; tt++) {
+      int offset = tt;
+      tasks.add(pool.submit(() -> {
+        startGate.await();
+        for (int ii = 0; ii < 5000; ii++) {
+          int idx = (ii + offset) % exprs.length;
+          Token[] expr = (ii & 1) == 0 ? parsed[idx] : parse(exprs[idx], null);
+          Object result = eval(expr, vals);
+          if (!expected[idx].equals(result) && failures.getAndIncrement() == 0) {
+            out.println(exprs[idx] + " = " + result + " on " + Thread.currentThread().getName() + ", expected " + expected[idx]);
+          }
+        }
+        return null;
+      }));
+    }
+    startGate.countDown();
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException | ExecutionException ex) {
+      out.println("Concurrency test failed: " + ex);
+      failures.incrementAndGet();
+    } finally {
+      pool.shutdown();
+    }
+    if (failures.get() > 0) {
+      out.println(failures.get() + " concurrent evaluation errors");
+    }
+    return failures.get() > 0;
+  }
+
+  /**
+   * Checks that compiled expressions produce the same results as the interpreter, including values that
+   * overflow a long and so must fall back to the interpreter
+   * @param out PrintStream for error messages
+   * @return true if any error was detected
+   */
+  static boolean doCompileTests (PrintStream out) {
+    boolean err = false;
+    String[] exprs = {
+        "(A + B) * 3 - high(C)",
+        "max(A, B) << 2",
+        "min(A, C) - abs(B)",
+        "low(C) ^ (A | B) & !A",
+        "(0 - C) >> 3",
+        "C >>> B % 9",
+        "A * B * C",
+        "(A - B) / (C % 5 + 1)",
+        "0x7FFFFFFFFFFFFFFF + A",
+    };
+    long[] samples = {0, 1, -1, 7, -8, 255, 0x1234, -0x1234, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+    int saveThreshold = compileThreshold;
+    setCompileThreshold(1);
+    try {
+      for (String text : exprs) {
+        Expression expr = compile(text, null);
+        for (long aa : samples) {
+          for (long bb : samples) {
+            for (long cc : samples) {
+              Map<String,Object> vals = new HashMap<>();
+              vals.put("A", aa);
+              vals.put("B", bb);
+              vals.put("C", cc);
+              Object expected, result;
+              try {
+                expected = eval(expr.getTokens(), vals);
+              } catch (IllegalStateException ex) {
+                expected = ex.getClass();
+              }
+              try {
+                result = expr.eval(vals);
+              } catch (IllegalStateException ex) {
+                result = ex.getClass();
+              }
+              if (!expected.equals(result)) {
+                out.println(text + " = " + result + " with A=" + aa + ", B=" + bb + ", C=" + cc + ", expected " + expected);
+                err = true;
+              }
+            }
+          }
+        }
+        if (ExpressionCompiler.isSupported() && !expr.isCompiled()) {
+          out.println(text + " was not compiled");
+          err = true;
+        }
+      }
+      if (compile("A > B", null).getCompiled() != null) {
+        out.println("A > B should not be compiled");
+        err = true;
+      }
+    } finally {
+      setCompileThreshold(saveThreshold);
+    }
+    return err;
+  }
+
+  /**
+   * Checks that evalBatch() produces the same results as evaluating each row separately
+   * @param out PrintStream for error messages
+   * @return true if any error was detected
+   */
+  static boolean doBatchTests (PrintStream out) {
+    boolean err = false;
+    String[] exprs = {"(A + B) / 3 - high(C)", "A * B - C", "low(A) + 0x7FFFFFFFFFFFFF00", "42",
+                      "(A + A) - A"};     // Intermediate overflow for last row, so it falls back to BigInteger
+    long[] aa = {0, 1, -1, 255, 0x1234, Long.MAX_VALUE / 2 + 1};
+    long[] bb = {7, -8, 255, 3, -0x1234, 2};
+    long[] cc = {0x1234, 5, -9, 100000, 1, 1};
+    Map<String,long[]> columns = new HashMap<>();
+    columns.put("A", aa);
+    columns.put("B", bb);
+    columns.put("C", cc);
+    for (String text : exprs) {
+      Expression expr = compile(text, null);
+      long[] results;
+      try {
+        results = expr.evalBatch(columns);
+      } catch (IllegalStateException ex) {
+        out.println(text + " -> " + ex.getMessage());
+        err = true;
+        continue;
+      }
+      for (int row = 0; row < aa.length; row++) {
+        Map<String,Object> vals = new HashMap<>();
+        vals.put("A", aa[row]);
+        vals.put("B", bb[row]);
+        vals.put("C", cc[row]);
+        Object expected;
+        try {
+          expected = eval(expr.getTokens(), vals);
+        } catch (IllegalStateException ex) {
+          expected = ex.getClass();
+        }
+        if (!BigInteger.valueOf(results[row]).equals(expected)) {
+          out.println(text + " row " + row + " = " + results[row] + ", expected " + expected);
+          err = true;
+        }
+      }
+    }
+    try {
+      compile("A * B * C", null).evalBatch(Collections.singletonMap("A", aa));
+      out.println("evalBatch() with missing column should fail");
+      err = true;
+    } catch (IllegalArgumentException ex) {
+      // Expected
+    }
+    return err;
+  }
+
   public static void main (String[] args) {
     long start = System.currentTimeMillis();
     boolean err = doTests(System.out);
+    err |= doConcurrencyTests(System.out);
+    err |= doCompileTests(System.out);
+    err |= doBatchTests(System.out);
     long end = System.currentTimeMillis();
     if (!err) {
       System.out.println("All tests pass!");
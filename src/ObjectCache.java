@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Persistent, content-addressed cache for the .o and .d files produced by compiling one source file.
+ *  Entries are keyed by a SHA-256 hash of the compile command (with the build directory replaced by
+ *  a placeholder, so builds in different directories can share entries), the CHIP, CLOCK and DEFINES
+ *  tags and the source file's bytes.  Each entry also records a hash of every header listed in the
+ *  .d file, so an entry is only used if none of the headers it was compiled against have changed.
+ *  The cache is bounded in size and evicts the least recently used entries when it grows too large.
+ *
+ *  Layout: each entry is stored in dir as KEY.o, KEY.d and KEY.h (header list with hashes) and the
+ *  last modified time of KEY.o records when the entry was last used.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class ObjectCache {
+  private static final String                     DIR_TAG = "<TDIR>";
+  private static final Map<String,ObjectCache>    caches = new ConcurrentHashMap<>();
+  private final File                              dir;
+  private final long                              maxBytes;
+  private final Map<String,Long>                  sizes = new HashMap<>();
+  private long                                    totalBytes;
+  private final AtomicLong                        hits = new AtomicLong(), misses = new AtomicLong(),
+                                                  stores = new AtomicLong(), evictions = new AtomicLong();
+
+  private ObjectCache (File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        int idx = name.lastIndexOf('.');
+        if (name.endsWith(".tmp")) {
+          file.delete();                                  // Remove leftovers from an interrupted store()
+        } else if (idx > 0) {
+          sizes.merge(name.substring(0, idx), file.length(), Long::sum);
+          totalBytes += file.length();
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the shared ObjectCache for a cache directory (instances are shared so statistics and the
+   * size index persist between builds)
+   * @param dir path to cache directory
+   * @param maxBytes size limit for the cache (only used when the instance is first created)
+   * @return ObjectCache instance
+   */
+  static ObjectCache get (String dir, long maxBytes) {
+    return caches.computeIfAbsent(new File(dir).getAbsolutePath(), path -> new ObjectCache(new File(path), maxBytes));
+  }
+
+  /**
+   * Compute the key for compiling one file
+   * @param cmd compile command
+   * @param tmpDir build directory
+   * @param srcFile source file to be compiled
+   * @param tags compile tags (CHIP, CLOCK, DEFINES and PROFILE values are included in the key)
+   * @return hex String key
+   */
+  static String getKey (String cmd, String tmpDir, File srcFile, Map<String,String> tags) throws IOException {
+    MessageDigest md = getDigest();
+    md.update(cmd.replace(tmpDir, DIR_TAG).getBytes(StandardCharsets.UTF_8));
+    for (String tag : new String[] {"CHIP", "CLOCK", "DEFINES", "TOOLCRC", "PROFILE"}) {
+      md.update((tag + "=" + tags.get(tag) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    md.update(Files.readAllBytes(srcFile.toPath()));
+    return toHex(md.digest());
+  }
+
+  /**
+   * Look for a cached result and, if one is found, copy its .o and .d files into tmpDir
+   * @param key key computed by getKey()
+   * @param tmpDir build directory
+   * @param compFile name of file being compiled (outputs are compFile.o and compFile.d)
+   * @return true if cache hit
+   */
+  boolean fetch (String key, String tmpDir, String compFile) {
+    File obj = new File(dir, key + ".o");
+    File dep = new File(dir, key + ".d");
+    File hdr = new File(dir, key + ".h");
+    try {
+      if (obj.exists() && dep.exists() && hdr.exists()) {
+        // Verify headers used by the cached compile are unchanged
+        boolean valid = true;
+        for (String line : new String(Files.readAllBytes(hdr.toPath()), StandardCharsets.UTF_8).split("\n")) {
+          int idx = line.indexOf(' ');
+          if (idx > 0) {
+            File file = new File(tmpDir + line.substring(idx + 1));
+            if (!file.exists() || !line.substring(0, idx).equals(hashFile(file))) {
+              valid = false;
+              break;
+            }
+          }
+        }
+        if (valid) {
+          String deps = new String(Files.readAllBytes(dep.toPath()), StandardCharsets.UTF_8);
+          Files.copy(obj.toPath(), new File(tmpDir + compFile + ".o").toPath(), StandardCopyOption.REPLACE_EXISTING);
+          Utility.saveFile(new File(tmpDir + compFile + ".d"), deps.replace(DIR_TAG, escape(tmpDir)));
+          obj.setLastModified(System.currentTimeMillis());
+          hits.incrementAndGet();
+          return true;
+        }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Save the .o and .d files from a successful compile, then evict entries if the cache is too large
+   * @param key key computed by getKey()
+   * @param tmpDir build directory
+   * @param compFile name of file that was compiled
+   */
+  void store (String key, String tmpDir, String compFile) {
+    try {
+      String deps = new String(Files.readAllBytes(new File(tmpDir + compFile + ".d").toPath()), StandardCharsets.UTF_8);
+      // Record a hash of each header listed in the .d file which is located in tmpDir
+      StringBuilder buf = new StringBuilder();
+      for (String item : deps.replace("\\\n", " ").split("(?<!\\\\)\\s+")) {
+        item = item.replace("\\ ", " ");
+        if (item.startsWith(tmpDir) && !item.endsWith(":") && !item.endsWith(compFile)) {
+          String name = item.substring(tmpDir.length());
+          File file = new File(tmpDir + name);
+          if (file.exists()) {
+            buf.append(hashFile(file)).append(' ').append(name).append('\n');
+          }
+        }
+      }
+      // Write to temporary files, unique to this thread, so concurrent builds never see a partial entry
+      String tmpName = key + "." + Thread.currentThread().getId();
+      File tmpObj = new File(dir, tmpName + ".o.tmp");
+      File tmpDep = new File(dir, tmpName + ".d.tmp");
+      File tmpHdr = new File(dir, tmpName + ".h.tmp");
+      Files.copy(new File(tmpDir + compFile + ".o").toPath(), tmpObj.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Utility.saveFile(tmpDep, deps.replace(escape(tmpDir), DIR_TAG));
+      Utility.saveFile(tmpHdr, buf.toString());
+      Files.move(tmpDep.toPath(), new File(dir, key + ".d").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmpHdr.toPath(), new File(dir, key + ".h").toPath(), StandardCopyOption.REPLACE_EXISTING);
+      // Move .o into place last, as fetch() treats it as the marker of a complete entry
+      File obj = new File(dir, key + ".o");
+      Files.move(tmpObj.toPath(), obj.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      long size = obj.length() + new File(dir, key + ".d").length() + new File(dir, key + ".h").length();
+      stores.incrementAndGet();
+      synchronized (this) {
+        Long old = sizes.put(key, size);
+        totalBytes += size - (old != null ? old : 0);
+        if (totalBytes > maxBytes) {
+          evict();
+        }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Remove least recently used entries until the cache is back to 3/4 of its size limit
+   */
+  private void evict () {
+    List<String> keys = new ArrayList<>(sizes.keySet());
+    Map<String,Long> used = new HashMap<>();
+    for (String key : keys) {
+      used.put(key, new File(dir, key + ".o").lastModified());
+    }
+    keys.sort(Comparator.comparing(used::get));
+    for (String key : keys) {
+      if (totalBytes <= maxBytes * 3 / 4) {
+        break;
+      }
+      for (String ext : new String[] {".o", ".d", ".h"}) {
+        new File(dir, key + ext).delete();
+      }
+      totalBytes -= sizes.remove(key);
+      evictions.incrementAndGet();
+    }
+  }
+
+  long getHits () {
+    return hits.get();
+  }
+
+  long getMisses () {
+    return misses.get();
+  }
+
+  public String toString () {
+    synchronized (this) {
+      return "hits: " + hits + ", misses: " + misses + ", stores: " + stores + ", evictions: " + evictions +
+             ", size: " + (totalBytes / 1024) + "K of " + (maxBytes / 1024) + "K";
+    }
+  }
+
+  /**
+   * Escape spaces in a path in the same way as make dependency files
+   */
+  private static String escape (String path) {
+    return path.replace(" ", "\\ ");
+  }
+
+  private static String hashFile (File file) throws IOException {
+    return toHex(getDigest().digest(Files.readAllBytes(file.toPath())));
+  }
+
+  static MessageDigest getDigest () {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("ObjectCache SHA-256 not available");
+    }
+  }
+
+  static String toHex (byte[] data) {
+    StringBuilder buf = new StringBuilder();
+    for (byte val : data) {
+      buf.append(Utility.hexChar((byte) (val >> 4))).append(Utility.hexChar(val));
+    }
+    return buf.toString();
+  }
+}
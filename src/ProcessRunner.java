@@ -0,0 +1,292 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ *  Runs an external program, such as a toolchain command, or avrdude, from a list of arguments.  The
+ *  program's output (stderr merged into stdout) is drained by a dedicated daemon thread, so the calling
+ *  thread can enforce a timeout and no shared pool threads are ever blocked on I/O.  Each line of
+ *  output can be passed to a listener as it arrives and the output returned in the Result is bounded
+ *  in size (lines past the limit are still passed to the listener).  Alternatively, the program's standard
+ *  output can be streamed to a consumer (such as a filter for preprocessor output) and not kept at all,
+ *  in which case the Result only contains the standard error output.
+ *
+ *  While the program runs, the CPU time used by it and its descendant processes (such as cc1plus) is
+ *  sampled so the Result can report the total.  This requires Java 9, or later (ProcessHandle), so it
+ *  is accessed via reflection and, as a process's time can only be read while it's alive, it slightly
+ *  undercounts (cpuNanos is -1 on Java 8).
+ *
+ *  Command templates use the same *[TAG]* format as Utility.replaceTags(), but are expanded into an
+ *  argument list, so tag values containing spaces (such as paths) remain a single argument.  The
+ *  exception is a template token consisting only of a multi value tag (see multiTags), such as
+ *  *[DEFINES]*, which expands into one argument for each space separated value.  Lists of paths, such as
+ *  the object files to link, are passed as list tags instead, which expand into one argument for each
+ *  value in the list, so paths containing spaces are never split.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class ProcessRunner {
+  static final int                  DEFAULT_MAX_CHARS = 8 * 1024 * 1024;
+  private static final long         DRAIN_WAIT = 2000;
+  private static final long         CPU_POLL = 50;
+  private static Method             descendants, toHandle, info, pid, totalCpu;
+  private static final Set<String>  multiTags = new HashSet<>(Arrays.asList("DEFINES", "INTLV", "VBS", "OUT",
+                                                                            "LTO"));
+  private final List<String>        args;
+  private BuildMonitor              monitor;
+  private Consumer<String>          listener, stdout;
+  private long                      timeout;
+  private int                       maxChars = DEFAULT_MAX_CHARS;
+
+  static class Result {
+    final int     exitCode;
+    final String  output;
+    final boolean timedOut, truncated;
+    final long    cpuNanos;                 // CPU time used by process and descendants, or -1 if not known
+
+    Result (int exitCode, String output, boolean timedOut, boolean truncated, long cpuNanos) {
+      this.exitCode = exitCode;
+      this.output = output;
+      this.timedOut = timedOut;
+      this.truncated = truncated;
+      this.cpuNanos = cpuNanos;
+    }
+  }
+
+  ProcessRunner (List<String> args) {
+    this.args = new ArrayList<>(args);
+  }
+
+  /**
+   * Create a ProcessRunner for a command template
+   * @param exeDir directory containing the program named by the first token in template
+   * @param template command template, such as "avr-size -A *[TDIR]*Sketch.elf"
+   * @param tags values for the tags used in template
+   */
+  ProcessRunner (String exeDir, String template, Map<String,String> tags) {
+    this(getArgs(exeDir, template, tags, Collections.emptyMap()));
+  }
+
+  /**
+   * Create a ProcessRunner for a command template which uses list tags
+   * @param exeDir directory containing the program named by the first token in template
+   * @param template command template, such as "avr-gcc-nm *[OBJS]*"
+   * @param tags values for the tags used in template
+   * @param lists values for the list tags used in template (each value is one argument)
+   */
+  ProcessRunner (String exeDir, String template, Map<String,String> tags, Map<String,List<String>> lists) {
+    this(getArgs(exeDir, template, tags, lists));
+  }
+
+  /**
+   * Start the process using a BuildMonitor, so it's destroyed if the build is cancelled
+   */
+  ProcessRunner setMonitor (BuildMonitor monitor) {
+    this.monitor = monitor;
+    return this;
+  }
+
+  /**
+   * @param listener receives each line of output as it's read (called on the drain thread), or null
+   */
+  ProcessRunner setListener (Consumer<String> listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * @param stdout receives each line of standard output as it's read (called on a drain thread), which is
+   *               then not kept in the Result, or passed to the listener (standard error output still is)
+   */
+  ProcessRunner setStdoutConsumer (Consumer<String> stdout) {
+    this.stdout = stdout;
+    return this;
+  }
+
+  /**
+   * @param timeout time, in milliseconds, after which the process (and its descendants) is destroyed, or 0
+   */
+  ProcessRunner setTimeout (long timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  /**
+   * @param maxChars maximum number of characters of output to keep in Result
+   */
+  ProcessRunner setMaxChars (int maxChars) {
+    this.maxChars = maxChars;
+    return this;
+  }
+
+  /**
+   * @return command line, for display
+   */
+  String getCommand () {
+    return String.join(" ", args);
+  }
+
+  /**
+   * Run the process and wait for it to exit, or time out
+   * @return Result containing exit code and output
+   * @throws BuildMonitor.CancellationException if the BuildMonitor has been cancelled
+   */
+  Result run () throws IOException, InterruptedException {
+    ProcessBuilder builder = new ProcessBuilder(args).redirectErrorStream(stdout == null);
+    Process proc = monitor != null ? monitor.start(builder) : builder.start();
+    StringBuilder buf = new StringBuilder();
+    boolean[] truncated = new boolean[1];
+    Thread drain, errDrain = null;
+    if (stdout != null) {
+      drain = drain(proc.getInputStream(), stdout, "stdout");
+      errDrain = drain(proc.getErrorStream(), line -> keep(line, buf, truncated), "stderr");
+    } else {
+      drain = drain(proc.getInputStream(), line -> keep(line, buf, truncated), "output");
+    }
+    boolean timedOut = false;
+    Map<Object,Long> cpu = new HashMap<>();
+    try {
+      long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+      sampleCpu(proc, cpu);
+      while (!proc.waitFor(Math.max(1, Math.min(CPU_POLL, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS)) {
+        sampleCpu(proc, cpu);
+        if (System.currentTimeMillis() >= deadline) {
+          timedOut = true;
+          BuildMonitor.destroy(proc);
+          break;
+        }
+      }
+      proc.waitFor();
+      // Let drain threads read the last of the output, but don't wait on a descendant that holds a pipe open
+      drain.join(DRAIN_WAIT);
+      if (errDrain != null) {
+        errDrain.join(DRAIN_WAIT);
+      }
+    } catch (InterruptedException ex) {
+      BuildMonitor.destroy(proc);
+      throw ex;
+    }
+    synchronized (buf) {
+      if (truncated[0]) {
+        buf.append("... (output truncated)\n");
+      }
+      if (timedOut) {
+        buf.append("Timed out after ").append(timeout / 1000).append(" seconds: ").append(getCommand()).append('\n');
+      }
+      long cpuNanos = descendants != null ? cpu.values().stream().mapToLong(Long::longValue).sum() : -1;
+      return new Result(proc.exitValue(), buf.toString(), timedOut, truncated[0], cpuNanos);
+    }
+  }
+
+  /**
+   * Start a daemon thread which reads lines from a stream until it's closed
+   * @param stream stream to read
+   * @param sink receives each line
+   * @param name name of stream (used in thread name)
+   * @return Thread
+   */
+  private Thread drain (InputStream stream, Consumer<String> sink, String name) {
+    Thread thread = new Thread(() -> {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(stream))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          sink.accept(line);
+        }
+      } catch (IOException ex) {
+        // Stream closed because process was destroyed
+      }
+    }, "ProcessRunner: " + new File(args.get(0)).getName() + " " + name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Add a line to the output kept in the Result (up to maxChars) and pass it to the listener
+   */
+  private void keep (String line, StringBuilder buf, boolean[] truncated) {
+    synchronized (buf) {
+      if (buf.length() + line.length() < maxChars) {
+        buf.append(line).append('\n');
+      } else {
+        truncated[0] = true;
+      }
+    }
+    if (listener != null) {
+      listener.accept(line);
+    }
+  }
+
+  /**
+   * Record the CPU time used so far by proc and each of its descendants (keyed by pid)
+   */
+  private static void sampleCpu (Process proc, Map<Object,Long> cpu) {
+    try {
+      synchronized (ProcessRunner.class) {
+        if (descendants == null) {
+          Class<?> handle = Class.forName("java.lang.ProcessHandle");
+          info = handle.getMethod("info");
+          pid = handle.getMethod("pid");
+          totalCpu = Class.forName("java.lang.ProcessHandle$Info").getMethod("totalCpuDuration");
+          toHandle = Process.class.getMethod("toHandle");
+          descendants = Process.class.getMethod("descendants");
+        }
+      }
+      List<Object> handles = ((Stream<?>) descendants.invoke(proc)).collect(Collectors.toList());
+      handles.add(toHandle.invoke(proc));
+      for (Object handle : handles) {
+        Optional<?> time = (Optional<?>) totalCpu.invoke(info.invoke(handle));
+        if (time.isPresent()) {
+          cpu.merge(pid.invoke(handle), ((Duration) time.get()).toNanos(), Math::max);
+        }
+      }
+    } catch (ClassNotFoundException | NoSuchMethodException ex) {
+      // Java 8, so CPU time is not available
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Expand a command template into a list of arguments
+   * @param exeDir directory containing the program named by the first token in template
+   * @param template command template
+   * @param tags values for the tags used in template
+   * @param lists values for the list tags used in template
+   * @return List of arguments
+   */
+  static List<String> getArgs (String exeDir, String template, Map<String,String> tags,
+                               Map<String,List<String>> lists) {
+    List<String> args = new ArrayList<>();
+    for (String token : template.trim().split("\\s+")) {
+      boolean tagOnly = token.startsWith("*[") && token.endsWith("]*") && token.indexOf("]*") == token.length() - 2;
+      if (tagOnly && lists.containsKey(token.substring(2, token.length() - 2))) {
+        args.addAll(lists.get(token.substring(2, token.length() - 2)));
+      } else if (tagOnly && multiTags.contains(token.substring(2, token.length() - 2))) {
+        String val = Utility.replaceTags(token, tags).trim();
+        if (val.length() > 0) {
+          args.addAll(Arrays.asList(val.split("\\s+")));
+        }
+      } else {
+        String arg = Utility.replaceTags(token, tags);
+        if (arg.length() > 0) {
+          args.add(arg);
+        }
+      }
+    }
+    if (!args.isEmpty()) {
+      args.set(0, exeDir + args.get(0));
+    }
+    return args;
+  }
+}
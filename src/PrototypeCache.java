@@ -0,0 +1,139 @@
+import cpp14.CPP14ProtoGen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  Caches the function prototypes CPP14ProtoGen generates for the preprocessed Sketch.cpp so that,
+ *  when only the bodies of functions have changed since the last build, no parse is needed at all.
+ *
+ *  The source is split into top level chunks (a function definition, or a declaration ending in ';')
+ *  and each function body is replaced by "{}", as prototypes only depend on the signature.  The
+ *  prototypes for the whole source are cached by a hash of the stripped source and the prototypes
+ *  for each chunk by the stripped chunk, so, when a signature changes, only the chunks which have
+ *  changed are parsed.  The scanner only needs to track braces, parentheses and literals, as the
+ *  preprocessor has already removed comments.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class PrototypeCache {
+  private static final int                  MAX_SOURCES = 16, MAX_CHUNKS = 1024;
+  private static final Map<String,String>   sources = new LinkedHashMap<String,String>(16, 0.75f, true) {
+    protected boolean removeEldestEntry (Map.Entry<String,String> eldest) {
+      return size() > MAX_SOURCES;
+    }
+  };
+  private static final Map<String,String>   chunks = new LinkedHashMap<String,String>(256, 0.75f, true) {
+    protected boolean removeEldestEntry (Map.Entry<String,String> eldest) {
+      return size() > MAX_CHUNKS;
+    }
+  };
+  private static int                        parsed;
+
+  /**
+   * Get the prototypes for the functions defined in preprocessed source, parsing only chunks not seen before
+   * @param src preprocessed source code
+   * @return prototypes (one per line)
+   */
+  static synchronized String getPrototypes (String src) {
+    List<String> stripped = split(src);
+    String key = ObjectCache.toHex(ObjectCache.getDigest().digest(String.join("", stripped)
+                                                                       .getBytes(StandardCharsets.UTF_8)));
+    String protos = sources.get(key);
+    if (protos == null) {
+      // Combine prototypes in source order, dropping duplicates (such as from a declaration and a definition)
+      Set<String> lines = new LinkedHashSet<>();
+      for (String chunk : stripped) {
+        String chunkProtos = chunks.get(chunk);
+        if (chunkProtos == null) {
+          chunkProtos = CPP14ProtoGen.getPrototypes(chunk);
+          chunks.put(chunk, chunkProtos);
+          parsed++;
+        }
+        for (String line : chunkProtos.split("\n")) {
+          if (line.trim().length() > 0) {
+            lines.add(line);
+          }
+        }
+      }
+      StringBuilder buf = new StringBuilder();
+      for (String line : lines) {
+        buf.append(line).append("\n");
+      }
+      sources.put(key, protos = buf.toString());
+    }
+    return protos;
+  }
+
+  /**
+   * @return number of chunks parsed since the cache was created
+   */
+  static synchronized int getParsedCount () {
+    return parsed;
+  }
+
+  /**
+   * Split source into top level chunks with function bodies replaced by "{}"
+   * @param src preprocessed source code
+   * @return List of stripped chunks
+   */
+  private static List<String> split (String src) {
+    List<String> list = new ArrayList<>();
+    int start = 0, depth = 0, parens = 0, body = -1;
+    boolean params = false, assign = false;
+    for (int ii = 0; ii < src.length(); ii++) {
+      char cc = src.charAt(ii);
+      if (cc == '"' || cc == '\'') {
+        ii = skipLiteral(src, ii);
+      } else if (cc == '{') {
+        // A brace after a parameter list starts a function body, unless it's an initializer, or lambda
+        if (depth == 0 && parens == 0 && params && !assign) {
+          body = ii;
+        }
+        depth++;
+      } else if (cc == '}') {
+        depth = Math.max(0, depth - 1);
+        if (depth == 0 && body >= 0) {
+          list.add(src.substring(start, body) + "{}");
+          start = ii + 1;
+          body = -1;
+          params = assign = false;
+        }
+      } else if (depth == 0) {
+        if (cc == '(') {
+          parens++;
+        } else if (cc == ')') {
+          parens = Math.max(0, parens - 1);
+          params |= parens == 0;
+        } else if (cc == '=' && parens == 0) {
+          assign = true;
+        } else if (cc == ';' && parens == 0) {
+          list.add(src.substring(start, ii + 1));
+          start = ii + 1;
+          params = assign = false;
+        }
+      }
+    }
+    if (start < src.length() && src.substring(start).trim().length() > 0) {
+      list.add(src.substring(start));
+    }
+    return list;
+  }
+
+  /**
+   * @return index of the quote which ends the string, or character literal starting at start
+   */
+  private static int skipLiteral (String src, int start) {
+    char quote = src.charAt(start);
+    for (int ii = start + 1; ii < src.length(); ii++) {
+      char cc = src.charAt(ii);
+      if (cc == '\\') {
+        ii++;
+      } else if (cc == quote || cc == '\n') {
+        return ii;
+      }
+    }
+    return src.length();
+  }
+}
@@ -0,0 +1,265 @@
+import java.util.*;
+
+/**
+ *  Index of the lines of a source file and the #pragma and #include directives they contain, which
+ *  is built in one pass over the source, then kept up to date as the source is edited by passing each
+ *  insert and remove to insert() and remove().  An edit only rescans the lines it touches, so the
+ *  chip detection run on every keystroke and the #pragma processing and prototype insertion done by
+ *  each build read the directives without splitting and parsing the whole source again.
+ *
+ *  Note: an index is not thread safe, so a build running on another thread should be given a copy().
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class SourceIndex {
+  private static final int      PRAGMA = 1, INCLUDE = 2;
+  private final List<String>    lines;
+  private final List<Directive> directives;                 // Directive for each line, or null
+  private int[]                 starts;                     // Offset to start of each line
+  private int                   validStarts;                // Number of entries in starts which are valid
+  private List<Pragma>          pragmas;                    // Derived from directives (null if must be rebuilt)
+  private List<String>          includes;
+  private int                   lastInclude;
+
+  private static class Directive {
+    final int     kind;
+    final String  text;
+
+    Directive (int kind, String text) {
+      this.kind = kind;
+      this.text = text;
+    }
+  }
+
+  static class Pragma {
+    final int       line;
+    final String    text;                                   // Text following "#pragma", such as "chip attiny10"
+    final String[]  parts;                                  // text split by Utility.parse(), such as {"chip", "attiny10"}
+
+    Pragma (int line, String text) {
+      this.line = line;
+      this.text = text;
+      this.parts = Utility.parse(text);
+    }
+  }
+
+  SourceIndex (String src) {
+    lines = new ArrayList<>(Arrays.asList(src.split("\n", -1)));
+    directives = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      directives.add(getDirective(line));
+    }
+    starts = new int[lines.size() + 16];
+  }
+
+  private SourceIndex (SourceIndex index) {
+    lines = new ArrayList<>(index.lines);
+    directives = new ArrayList<>(index.directives);
+    starts = index.starts.clone();
+    validStarts = index.validStarts;
+    pragmas = index.pragmas;
+    includes = index.includes;
+    lastInclude = index.lastInclude;
+  }
+
+  /**
+   * @return copy of index which can be passed to another thread, as it won't see later edits
+   */
+  SourceIndex copy () {
+    return new SourceIndex(this);
+  }
+
+  /**
+   * Update index for text inserted into the source
+   * @param offset offset in source where text was inserted
+   * @param text inserted text
+   */
+  void insert (int offset, String text) {
+    int line = getLineIndex(offset);
+    String old = lines.get(line);
+    int col = offset - getStart(line);
+    replaceLines(line, line, old.substring(0, col) + text + old.substring(col));
+  }
+
+  /**
+   * Update index for text removed from the source
+   * @param offset offset in source of first character removed
+   * @param length number of characters removed
+   */
+  void remove (int offset, int length) {
+    int first = getLineIndex(offset), last = getLineIndex(offset + length);
+    String head = lines.get(first).substring(0, offset - getStart(first));
+    String tail = lines.get(last).substring(offset + length - getStart(last));
+    replaceLines(first, last, head + tail);
+  }
+
+  /**
+   * @return number of lines (text after the last '\n' counts as a line, even if empty)
+   */
+  int getLineCount () {
+    return lines.size();
+  }
+
+  /**
+   * @param line line number (first line is 1)
+   * @return text of line (without '\n')
+   */
+  String getLine (int line) {
+    return lines.get(line - 1);
+  }
+
+  /**
+   * @param line line number (first line is 1)
+   * @return offset in source to start of line
+   */
+  int getLineStart (int line) {
+    return getStart(line - 1);
+  }
+
+  /**
+   * @param offset offset in source
+   * @return line number (first line is 1) containing offset
+   */
+  int getLineOf (int offset) {
+    return getLineIndex(offset) + 1;
+  }
+
+  String getText () {
+    return String.join("\n", lines);
+  }
+
+  /**
+   * @return #pragma directives (with "//" comments removed), in the order they appear
+   */
+  List<Pragma> getPragmas () {
+    update();
+    return pragmas;
+  }
+
+  /**
+   * @return #include lines (with "//" comments removed), in the order they appear
+   */
+  List<String> getIncludes () {
+    update();
+    return includes;
+  }
+
+  /**
+   * @return number of the last line containing an #include (1 if none)
+   */
+  int getLastIncludeLine () {
+    update();
+    return lastInclude;
+  }
+
+  /**
+   * Replace a range of lines with the lines in text and rescan only those lines
+   */
+  private void replaceLines (int first, int last, String text) {
+    String[] newLines = text.split("\n", -1);
+    boolean changed = newLines.length != last - first + 1;
+    for (int ii = first; ii <= last; ii++) {
+      changed |= directives.get(ii) != null;
+    }
+    List<Directive> newDirectives = new ArrayList<>(newLines.length);
+    for (String line : newLines) {
+      Directive directive = getDirective(line);
+      newDirectives.add(directive);
+      changed |= directive != null;
+    }
+    lines.subList(first, last + 1).clear();
+    lines.addAll(first, Arrays.asList(newLines));
+    directives.subList(first, last + 1).clear();
+    directives.addAll(first, newDirectives);
+    validStarts = Math.min(validStarts, first + 1);
+    if (changed) {
+      // Line numbers of directives, or the directives themselves have changed
+      pragmas = null;
+    }
+  }
+
+  private void update () {
+    if (pragmas != null) {
+      return;
+    }
+    List<Pragma> pragmaList = new ArrayList<>();
+    List<String> includeList = new ArrayList<>();
+    lastInclude = 1;
+    for (int ii = 0; ii < directives.size(); ii++) {
+      Directive directive = directives.get(ii);
+      if (directive != null) {
+        if (directive.kind == PRAGMA) {
+          pragmaList.add(new Pragma(ii + 1, directive.text));
+        } else {
+          includeList.add(directive.text);
+          lastInclude = ii + 1;
+        }
+      }
+    }
+    pragmas = Collections.unmodifiableList(pragmaList);
+    includes = Collections.unmodifiableList(includeList);
+  }
+
+  private static Directive getDirective (String line) {
+    if (line.indexOf('#') < 0) {
+      return null;
+    }
+    int idx = line.indexOf("//");
+    if (idx >= 0) {
+      line = line.substring(0, idx);
+    }
+    line = line.trim();
+    if (line.startsWith("#pragma")) {
+      return new Directive(PRAGMA, line.substring(7).trim());
+    } else if (line.startsWith("#include")) {
+      return new Directive(INCLUDE, line);
+    }
+    return null;
+  }
+
+  /**
+   * @return offset of start of line (first line is 0), computing offsets which are out of date, as needed
+   */
+  private int getStart (int line) {
+    if (line >= validStarts) {
+      if (starts.length < lines.size()) {
+        starts = Arrays.copyOf(starts, lines.size() + lines.size() / 2);
+      }
+      if (validStarts == 0) {
+        starts[0] = 0;
+        validStarts = 1;
+      }
+      for (int ii = validStarts; ii <= line; ii++) {
+        starts[ii] = starts[ii - 1] + lines.get(ii - 1).length() + 1;
+      }
+      validStarts = line + 1;
+    }
+    return starts[line];
+  }
+
+  /**
+   * @return index of line (first line is 0) containing offset
+   */
+  private int getLineIndex (int offset) {
+    // Search lines with up to date offsets, else compute offsets for the following lines until offset is reached
+    int lo = 0, hi = validStarts - 1;
+    if (validStarts == 0 || offset >= starts[validStarts - 1]) {
+      getStart(0);
+      int line = validStarts - 1;
+      while (line + 1 < lines.size() && getStart(line + 1) <= offset) {
+        line++;
+      }
+      return line;
+    }
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+}
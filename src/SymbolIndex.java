@@ -0,0 +1,110 @@
+import java.util.*;
+
+/**
+ *  Index of the global symbols each object file defines and references, parsed from the output of
+ *  "avr-gcc-nm" (which, unlike avr-nm, or an ELF reader, can read the slim LTO objects the compile
+ *  templates generate).  Given the symbols a sketch references, select() picks the files which must be
+ *  linked to define them in the same way the linker selects members from an archive, which is to keep
+ *  adding the files defining symbols that are still undefined until no more files are added.
+ *
+ *  The output of avr-gcc-nm is also the format used to save the index, so it can be reloaded in a
+ *  later build without running avr-gcc-nm again.
+ *
+ *  License: MIT (https://opensource.org/licenses/MIT)
+ */
+
+class SymbolIndex {
+  private final String                    text;
+  private final Map<String,Set<String>>   defined = new TreeMap<>(), undefined = new TreeMap<>();
+  private final Map<String,String>        definers = new HashMap<>(), weakDefiners = new HashMap<>();
+
+  /**
+   * Parse the output of avr-gcc-nm
+   * @param text output of avr-gcc-nm for one, or more object files
+   * @param fileName name of file to use when text is for a single file (nm only prints file names for multiple files)
+   */
+  SymbolIndex (String text, String fileName) {
+    this.text = text;
+    String file = fileName;
+    for (String line : text.split("\n")) {
+      line = line.trim();
+      if (line.endsWith(":")) {
+        file = getFileName(line.substring(0, line.length() - 1));
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      if (file == null || parts.length < 2 || parts[parts.length - 2].length() != 1) {
+        continue;
+      }
+      String name = parts[parts.length - 1];
+      char type = parts[parts.length - 2].charAt(0);
+      defined.computeIfAbsent(file, k -> new TreeSet<>());
+      undefined.computeIfAbsent(file, k -> new TreeSet<>());
+      if (type == 'U') {
+        undefined.get(file).add(name);
+      } else if (type == 'W' || type == 'V') {
+        defined.get(file).add(name);
+        weakDefiners.putIfAbsent(name, file);
+      } else if (Character.isUpperCase(type)) {
+        defined.get(file).add(name);
+        definers.putIfAbsent(name, file);
+      }
+    }
+  }
+
+  /**
+   * Reduce a path to an object file to the name of the source file it was compiled from
+   * @param path such as "/tmp/x/wiring.c.o"
+   * @return such as "wiring.c"
+   */
+  static String getFileName (String path) {
+    String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    return name.endsWith(".o") ? name.substring(0, name.length() - 2) : name;
+  }
+
+  /**
+   * @return names of files in the index (the source file names, such as "wiring.c")
+   */
+  Set<String> getFiles () {
+    return Collections.unmodifiableSet(defined.keySet());
+  }
+
+  Set<String> getDefined (String file) {
+    return defined.getOrDefault(file, Collections.emptySet());
+  }
+
+  Set<String> getUndefined (String file) {
+    return undefined.getOrDefault(file, Collections.emptySet());
+  }
+
+  /**
+   * Select the files needed to define a set of symbols, and the symbols those files reference in turn
+   * @param needed symbols referenced by the files already being linked (such as the sketch)
+   * @param provided symbols defined by the files already being linked
+   * @return names of the files needed, in name order
+   */
+  Set<String> select (Collection<String> needed, Collection<String> provided) {
+    Set<String> selected = new TreeSet<>();
+    Set<String> known = new HashSet<>(provided);
+    Deque<String> todo = new ArrayDeque<>(needed);
+    while (!todo.isEmpty()) {
+      String name = todo.removeFirst();
+      if (!known.add(name)) {
+        continue;
+      }
+      String file = definers.getOrDefault(name, weakDefiners.get(name));
+      if (file != null && selected.add(file)) {
+        known.addAll(getDefined(file));
+        todo.addAll(getUndefined(file));
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * @return text the index was parsed from (used to save the index)
+   */
+  String getText () {
+    return text;
+  }
+}
@@ -10,15 +10,20 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 class Utility {
   private static final String   StartMarker = "//:Begin Embedded Markdown Data (do not edit)";
   private static final String   EndMarker = "\n//:End Embedded Markdown Data";
+  private static final Map<String,Map<String,byte[]>> resourceIndex = new ConcurrentHashMap<>();
+  private static final Map<String,long[]>             syncedFiles = new ConcurrentHashMap<>();
   private static final char[]   hex = {'0', '1', '2', '3', '4', '5', '6', '7',
                                        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
 
@@ -147,63 +152,18 @@ class Utility {
     return buf.toString();
   }
 
-  static String runCmd (Process proc) {
-    return Stream.of(proc.getErrorStream(), proc.getInputStream()).parallel().map((InputStream isForOutput) -> {
-      StringBuilder output = new StringBuilder();
-      try (
-        BufferedReader br = new BufferedReader(new InputStreamReader(isForOutput))) {
-        String line;
-        while ((line = br.readLine()) != null) {
-          output.append(line);
-          output.append("\n");
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-      return output;
-    }).collect(Collectors.joining());
-  }
-
-  static void runCmd (Process proc, ATTinyC.MyTextPane pane) {
-    Stream.of(proc.getErrorStream(), proc.getInputStream()).parallel().map((InputStream isForOutput) -> {
-      StringBuilder output = new StringBuilder();
-      try (
-        BufferedReader br = new BufferedReader(new InputStreamReader(isForOutput))) {
-        String line;
-        while ((line = br.readLine()) != null) {
-          pane.append(line);
-          pane.append("\n");
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
-      return output;
-    }).collect(Collectors.joining());
-  }
-
-  private static void copyResourceToDir (String fName, String tmpDir) throws IOException {
-    InputStream fis = Utility.class.getClassLoader().getResourceAsStream(fName);
-    if (fis != null) {
-      byte[] data = new byte[fis.available()];
-      fis.read(data);
-      fis.close();
-      File file = new File(tmpDir + (new File(fName)).getName());
-      FileOutputStream fOut = new FileOutputStream(file);
-      fOut.write(data);
-      fOut.close();
-    } else {
-      throw new IllegalStateException("copyResourceToDir('" + fName + "', '" + tmpDir + "') " + " unable to copy");
-    }
-  }
-
-  static void copyResourcesToDir (String base, String tmpDir) throws URISyntaxException, IOException {
-    java.nio.file.FileSystem fileSystem = null;
-    if (base != null) {
+  /**
+   * Get the names and content of the files in a resource directory, such as a core or library.  The
+   * index is read from the jar (or classpath directory) once and then kept in memory.
+   * @param base resource directory name
+   * @return Map of file name to file content
+   */
+  static Map<String,byte[]> getResourceIndex (String base) throws URISyntaxException, IOException {
+    Map<String,byte[]> index = resourceIndex.get(base);
+    if (index == null) {
+      index = new TreeMap<>();
+      java.nio.file.FileSystem fileSystem = null;
       try {
-        File path = new File(tmpDir);
-        if (!path.exists()) {
-          path.mkdirs();
-        }
         URL url = Utility.class.getResource(base);
         if (url != null) {
           URI uri = url.toURI();
@@ -214,12 +174,12 @@ class Utility {
           } else {
             myPath = Paths.get(uri);
           }
-          Stream<Path> walk = Files.walk(myPath, 1);
-          for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
-            Path item = it.next();
-            String fName = item.getFileName().toString();
-            if (!fName.equals(base)) {
-              copyResourceToDir(base + "/" + fName, tmpDir);
+          try (Stream<Path> walk = Files.walk(myPath, 1)) {
+            for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+              Path item = it.next();
+              if (!Files.isDirectory(item)) {
+                index.put(item.getFileName().toString(), Files.readAllBytes(item));
+              }
             }
           }
         }
@@ -228,6 +188,80 @@ class Utility {
           fileSystem.close();
         }
       }
+      index = Collections.unmodifiableMap(index);
+      resourceIndex.put(base, index);
+    }
+    return index;
+  }
+
+  /**
+   * Synchronize the files in tmpDir with the files in one, or more resource directories.  Only files
+   * whose content differs are written and any other files, or directories in tmpDir are removed.  Where
+   * more than one resource directory contains a file with the same name, the last one listed is used.
+   * @param tmpDir path to directory to synchronize
+   * @param bases resource directory names (null entries are ignored)
+   * @return number of files written
+   */
+  static int syncResourcesToDir (String tmpDir, String... bases) throws URISyntaxException, IOException {
+    File dir = new File(tmpDir);
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IllegalStateException("Unable to create directory: " + dir);
+    }
+    Map<String,byte[]> files = new HashMap<>();
+    for (String base : bases) {
+      if (base != null) {
+        files.putAll(getResourceIndex(base));
+      }
+    }
+    // Remove stale files and directories
+    File[] list = dir.listFiles();
+    if (list != null) {
+      for (File file : list) {
+        if (!file.isFile() || !files.containsKey(file.getName())) {
+          if (file.isDirectory()) {
+            removeFiles(file);
+          }
+          file.delete();
+          syncedFiles.remove(file.getAbsolutePath());
+        }
+      }
+    }
+    int count = 0;
+    for (Map.Entry<String,byte[]> entry : files.entrySet()) {
+      File file = new File(dir, entry.getKey());
+      byte[] data = entry.getValue();
+      String path = file.getAbsolutePath();
+      long[] last = syncedFiles.get(path);
+      if (last != null && file.length() == last[0] && file.lastModified() == last[1]) {
+        continue;                                       // Unchanged since we last wrote, or verified it
+      }
+      if (!file.exists() || file.length() != data.length || !Arrays.equals(data, Files.readAllBytes(file.toPath()))) {
+        try (FileOutputStream fOut = new FileOutputStream(file)) {
+          fOut.write(data);
+        }
+        count++;
+      }
+      syncedFiles.put(path, new long[] {file.length(), file.lastModified()});
+    }
+    return count;
+  }
+
+  /**
+   * Remove every file and directory in dir which was not written, or verified by syncResourcesToDir(),
+   * such as build outputs and the sketch file
+   * @param dir path to directory
+   */
+  static void removeUnsyncedFiles (String dir) {
+    File[] list = new File(dir).listFiles();
+    if (list != null) {
+      for (File file : list) {
+        if (!syncedFiles.containsKey(file.getAbsolutePath())) {
+          if (file.isDirectory()) {
+            removeFiles(file);
+          }
+          file.delete();
+        }
+      }
     }
   }
 
@@ -295,6 +329,67 @@ class Utility {
     return crc.getValue();
   }
 
+  /**
+   * Get the path to the AVR toolchain zip file resource for the current OS
+   * @return resource path, or null if the OS is not supported
+   */
+  static String getToolchainZip () {
+    String osName = System.getProperty("os.name").toLowerCase();
+    if (osName.contains("win")) {
+      return "toolchains/WinToolchain.zip";
+    } else if (osName.contains("mac")) {
+      return "toolchains/MacToolchain.zip";
+    } else if (osName.contains("linux")) {
+      return "toolchains/L64Toolchain.zip";
+    }
+    return null;
+  }
+
+  /**
+   * Unzip a zip file resource into a directory and mark extracted programs as executable
+   * @param srcZip path to zip file resource
+   * @param dst destination directory
+   * @param progress receives percentage complete as files are extracted (or null)
+   */
+  static void unzipResource (String srcZip, File dst, IntConsumer progress) throws IOException {
+    InputStream in = Utility.class.getClassLoader().getResourceAsStream(srcZip);
+    if (in == null) {
+      throw new IllegalStateException("Resource not found: " + srcZip);
+    }
+    try (ZipInputStream zipStream = new ZipInputStream(in)) {
+      int fileSize = in.available();
+      byte[] buffer = new byte[2048];
+      Path outDir = Paths.get(dst.getPath());
+      int bytesRead = 0;
+      ZipEntry entry;
+      while ((entry = zipStream.getNextEntry()) != null) {
+        Path filePath = outDir.resolve(entry.getName());
+        File dstDir = filePath.toFile().getParentFile();
+        if (!dstDir.exists() && !dstDir.mkdirs()) {
+          throw new IllegalStateException("Unable to create directory: " + dstDir);
+        }
+        File dstFile = filePath.toFile();
+        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(dstFile), buffer.length)) {
+          int len;
+          while ((len = zipStream.read(buffer)) > 0) {
+            bos.write(buffer, 0, len);
+            bytesRead += len;
+          }
+        }
+        // Must set permissions after file is written or it doesn't take...
+        String file = dstFile.getName();
+        if (!file.contains(".") || file.toLowerCase().endsWith(".exe")) {
+          if (!dstFile.setExecutable(true)) {
+            throw new IllegalStateException("Unable to set permissions for " + dstFile);
+          }
+        }
+        if (progress != null && fileSize > 0) {
+          progress.accept((int) (((float) bytesRead / fileSize) * 100));
+        }
+      }
+    }
+  }
+
   static long crcZipfile (String srcZip) {
     CRC32 crc = new CRC32();
     try {
@@ -322,6 +417,35 @@ class Utility {
     return (val & (1 << bit)) != 0;
   }
 
+  /**
+   * Quote and escape a String for use as a JSON string value
+   * @param val String to quote (null is converted to JSON null)
+   * @return JSON string
+   */
+  static String toJSON (String val) {
+    if (val == null) {
+      return "null";
+    }
+    StringBuilder buf = new StringBuilder("\"");
+    for (char cc : val.toCharArray()) {
+      switch (cc) {
+        case '"':  buf.append("\\\""); break;
+        case '\\': buf.append("\\\\"); break;
+        case '\n': buf.append("\\n");  break;
+        case '\r': buf.append("\\r");  break;
+        case '\t': buf.append("\\t");  break;
+        default:
+          if (cc < 0x20) {
+            buf.append(String.format("\\u%04x", (int) cc));
+          } else {
+            buf.append(cc);
+          }
+          break;
+      }
+    }
+    return buf.append('"').toString();
+  }
+
   /**
    * JSON-like parser for non nested JSON Map
    * @param json JSON-like string, such as {fred=\"test\", alpha=\"123\"}"